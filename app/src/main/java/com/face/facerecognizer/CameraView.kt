@@ -55,7 +55,7 @@ fun CameraView(modifier: Modifier = Modifier, onFaceError: () -> Unit) {
                                 val imageFrameAnalysis = ImageAnalysis.Builder()
                                     .setTargetResolution(Size(480, 640))
                                     .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
-                                    .setOutputImageFormat(ImageAnalysis.OUTPUT_IMAGE_FORMAT_RGBA_8888)
+                                    .setOutputImageFormat(viewModel.frameAnalyser.outputImageFormat)
                                     .build()
                                 imageFrameAnalysis.setAnalyzer(
                                     Executors.newSingleThreadExecutor(),
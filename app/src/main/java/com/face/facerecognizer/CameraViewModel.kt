@@ -1,17 +1,30 @@
 package com.face.facerecognizer
 
 import android.app.Application
-import android.graphics.BitmapFactory
+import android.os.SystemClock
+import android.util.Log
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
+import com.face.vision.model.EmbeddingGallery
 import com.face.vision.model.FaceNetModel
 import com.face.vision.model.ModelInfo
 import com.face.vision.utils.AnalyseUserImageState
+import com.face.vision.utils.EmbeddingCache
+import com.face.vision.utils.EnrollmentEvent
+import com.face.vision.utils.EnrollmentImage
 import com.face.vision.utils.FileReader
 import com.face.vision.utils.FrameAnalyser
+import com.face.vision.utils.GalleryIndex
+import com.face.vision.utils.GalleryJournal
+import com.face.vision.utils.GalleryMigration
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
 
 class CameraViewModel(
     private val applicationContext: Application
@@ -19,20 +32,40 @@ class CameraViewModel(
     private val _analiseState = MutableStateFlow<AnalyseUserImageState>(AnalyseUserImageState.Init)
     val analiseState = _analiseState.asStateFlow()
 
+    private val _unmigratedLabels = MutableStateFlow<List<String>>(emptyList())
+
+    /**
+     * Identities the last gallery migration could not re-embed; the stale gallery is kept.
+     */
+    val unmigratedLabels = _unmigratedLabels.asStateFlow()
+
     private val faceNetModel: FaceNetModel =
         FaceNetModel(applicationContext, ModelInfo.FACENET_512_QUANTIZED)
     val frameAnalyser: FrameAnalyser = FrameAnalyser(faceNetModel) {
         _analiseState.value = it
     }
-    private val fileReader: FileReader = FileReader(faceNetModel)
+    private val embeddingCache = EmbeddingCache(File(applicationContext.cacheDir, "embeddings"))
+    private val fileReader: FileReader = FileReader(faceNetModel, embeddingCache = embeddingCache)
+    private val galleryRoot = File(applicationContext.filesDir, "gallery")
+    private val galleryIndex = GalleryIndex(
+        File(GalleryJournal.directoryFor(galleryRoot, faceNetModel.model), "gallery.hnsw")
+    )
+    private var indexJob: Job? = null
 
-    private val fileReaderCallback = object : FileReader.ProcessCallback {
-        override fun onProcessCompleted(
-            data: ArrayList<Pair<String, FloatArray>>,
-            numImagesWithNoFaces: Int
-        ) {
-            frameAnalyser.faceList = data
-        }
+    @Volatile
+    private var migrating = false
+
+    /**
+     * The model of the gallery being migrated, recognising until the migration is done.
+     */
+    private var staleModel: FaceNetModel? = null
+
+    private val galleryJournal = GalleryJournal(
+        GalleryJournal.directoryFor(galleryRoot, faceNetModel.model),
+        faceNetModel.model,
+        viewModelScope
+    ) {
+        if (!migrating) publish(it)
     }
 
     init {
@@ -41,14 +74,138 @@ class CameraViewModel(
 
     private fun loadImgDataSet() {
         viewModelScope.launch {
-            fileReader.run(
-                arrayListOf(
+            val stale = GalleryMigration.findStale(galleryRoot, faceNetModel.model)
+            migrating = stale != null
+            val stored = try {
+                galleryJournal.open()
+            } catch (e: IOException) {
+                null
+            }
+            if (stale != null && migrateFrom(stale, stored)) return@launch
+            migrating = false
+            if (stored != null && !stored.isEmpty()) {
+                publish(stored)
+                return@launch
+            }
+            // The journal publishes enrolled templates as they land; without it, publish here
+            val enrolled = EmbeddingGallery(faceNetModel.model.outputDims)
+            var published = 0L
+            var dirty = false
+            fileReader.enroll(
+                listOf(
                     //reference img
-                    "" to BitmapFactory.decodeResource(applicationContext.resources, R.mipmap.ivan)
-                ), callback = fileReaderCallback
+                    EnrollmentImage.fromResource("", applicationContext.resources, R.mipmap.ivan)
+                )
+            ).collect { event ->
+                if (event is EnrollmentEvent.Template) {
+                    galleryJournal.add(event.label, event.embedding)
+                    if (stored == null) {
+                        enrolled.add(event.label, event.embedding)
+                        dirty = true
+                        val now = SystemClock.elapsedRealtime()
+                        if (now - published >= PUBLISH_EVERY_MS) {
+                            publish(enrolled.copy())
+                            published = now
+                            dirty = false
+                        }
+                    }
+                }
+            }
+            if (dirty) publish(enrolled.copy())
+        }
+    }
+
+    /**
+     * Recognises with the stale gallery until the migration is done. Returns false if it
+     * was unreadable or empty.
+     */
+    private suspend fun migrateFrom(
+        stale: GalleryMigration.Stale,
+        partial: EmbeddingGallery?
+    ): Boolean {
+        val staleJournal = GalleryJournal(stale.directory, stale.model, viewModelScope) {}
+        val staleGallery = try {
+            staleJournal.open()
+        } catch (e: IOException) {
+            return false
+        } finally {
+            staleJournal.close()
+        }
+        if (staleGallery.isEmpty()) {
+            withContext(Dispatchers.IO) { stale.directory.deleteRecursively() }
+            return false
+        }
+        val model = try {
+            withContext(Dispatchers.IO) { FaceNetModel(applicationContext, stale.model) }
+        } catch (e: IOException) {
+            // Model no longer shipped; recognition resumes once the migration is done
+            null
+        }
+        staleModel = model
+        model?.let { frameAnalyser.use(it, staleGallery) }
+        val result = try {
+            val migration = GalleryMigration(
+                faceNetModel.model.outputDims,
+                galleryJournal,
+                { sourceImagesOf(it) },
+                { fileReader.scan(it).embeddings }
             )
+            migration.migrate(staleGallery, partial ?: EmbeddingGallery(faceNetModel.model.outputDims))
+                .also { galleryJournal.compact() }
+        } catch (e: IOException) {
+            // Keep recognising with the stale model; the next launch resumes from the journal
+            Log.w(TAG, "Migration from ${stale.model.name} failed", e)
+            return true
+        }
+        frameAnalyser.use(faceNetModel, result.gallery)
+        staleModel = null
+        model?.close()
+        indexLater(result.gallery)
+        migrating = false
+        _unmigratedLabels.value = result.failed
+        if (!GalleryMigration.retire(stale, result)) {
+            Log.w(TAG, "Keeping ${stale.directory}, no usable photos for ${result.failed}")
+        }
+        return true
+    }
+
+    private fun publish(gallery: EmbeddingGallery) {
+        frameAnalyser.gallery = gallery
+        indexLater(gallery)
+    }
+
+    /**
+     * Matches with a linear scan until the index has caught up with [gallery].
+     */
+    @Synchronized
+    private fun indexLater(gallery: EmbeddingGallery) {
+        frameAnalyser.matcher = null
+        indexJob?.cancel()
+        indexJob = viewModelScope.launch {
+            val index = galleryIndex.update(gallery)
+            if (index != null && frameAnalyser.gallery === gallery) {
+                frameAnalyser.matcher = index
+            }
         }
     }
 
+    private fun sourceImagesOf(label: String): List<EnrollmentImage> =
+        if (label == "") {
+            listOf(EnrollmentImage.fromResource("", applicationContext.resources, R.mipmap.ivan))
+        } else {
+            emptyList()
+        }
+
+    override fun onCleared() {
+        galleryJournal.close()
+        frameAnalyser.release()
+        staleModel?.close()
+        super.onCleared()
+    }
+
+    private companion object {
+        const val TAG = "CameraViewModel"
+        const val PUBLISH_EVERY_MS = 250L
+    }
 
 }
\ No newline at end of file
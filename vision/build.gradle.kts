@@ -30,6 +30,12 @@ android {
     kotlinOptions {
         jvmTarget = "1.8"
     }
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+        unitTests.all {
+            it.systemProperty("benchmark.rows", project.findProperty("benchmark.rows") ?: 2000)
+        }
+    }
 }
 
 dependencies {
@@ -48,4 +54,6 @@ dependencies {
     implementation(libs.face.detection)
     // CameraX dependencies
     implementation(libs.androidx.camera.camera2)
+
+    testImplementation(libs.junit)
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+
+/**
+ * Face templates packed row by row into one [FloatArray], with their L2 norms computed at
+ * insertion. Each identity's templates form one contiguous block of rows.
+ */
+class EmbeddingGallery(val dims: Int, initialCapacity: Int = 16) {
+
+    var data = FloatArray(dims * initialCapacity.coerceAtLeast(1))
+        private set
+
+    var norms = FloatArray(initialCapacity.coerceAtLeast(1))
+        private set
+
+    private val labels = ArrayList<String>(initialCapacity)
+
+    private val identities = ArrayList<String>()
+    private val identityIndex = HashMap<String, Int>()
+    private var identityStarts = IntArray(initialCapacity.coerceAtLeast(1) + 1)
+
+    /**
+     * Incremented on every modification so derived structures can tell when to rebuild.
+     */
+    var version = 0
+        private set
+
+    val size: Int
+        get() = labels.size
+
+    val identityCount: Int
+        get() = identities.size
+
+    fun isEmpty() = labels.isEmpty()
+
+    /**
+     * Adds a template for [label]. A new label starts a new identity at the end of the
+     * gallery; an existing one gets the template appended to its block.
+     */
+    fun add(label: String, embedding: FloatArray): Int {
+        require(embedding.size == dims) { "Expected $dims dims, got ${embedding.size}" }
+        ensureCapacity(size + 1)
+        val identity = identityIndex[label]
+        val row: Int
+        if (identity == null) {
+            row = size
+            ensureIdentityCapacity(identities.size + 1)
+            identityIndex[label] = identities.size
+            identities.add(label)
+            identityStarts[identities.size] = row + 1
+        } else {
+            row = identityStarts[identity + 1]
+            if (row < size) {
+                System.arraycopy(data, row * dims, data, (row + 1) * dims, (size - row) * dims)
+                System.arraycopy(norms, row, norms, row + 1, size - row)
+            }
+            for (i in identity + 1..identities.size) {
+                identityStarts[i]++
+            }
+        }
+        System.arraycopy(embedding, 0, data, row * dims, dims)
+        norms[row] = VectorMath.norm(data, row * dims, dims)
+        labels.add(row, label)
+        version++
+        return row
+    }
+
+    fun set(row: Int, embedding: FloatArray) {
+        require(embedding.size == dims) { "Expected $dims dims, got ${embedding.size}" }
+        checkRow(row)
+        System.arraycopy(embedding, 0, data, row * dims, dims)
+        norms[row] = VectorMath.norm(data, row * dims, dims)
+        version++
+    }
+
+    /**
+     * Removes [row], shifting later rows down by one to keep identity blocks contiguous.
+     * The identity itself is dropped together with its last template.
+     */
+    fun removeAt(row: Int) {
+        checkRow(row)
+        val identity = identityIndex.getValue(labels[row])
+        val tail = size - row - 1
+        if (tail > 0) {
+            System.arraycopy(data, (row + 1) * dims, data, row * dims, tail * dims)
+            System.arraycopy(norms, row + 1, norms, row, tail)
+        }
+        labels.removeAt(row)
+        for (i in identity + 1..identities.size) {
+            identityStarts[i]--
+        }
+        if (identityStarts[identity] == identityStarts[identity + 1]) {
+            removeIdentitySlot(identity)
+        }
+        version++
+    }
+
+    /**
+     * Removes every template of [label]. Returns false if the label is unknown.
+     */
+    fun removeIdentity(label: String): Boolean {
+        val identity = identityIndex[label] ?: return false
+        val start = identityStarts[identity]
+        val end = identityStarts[identity + 1]
+        val count = end - start
+        val tail = size - end
+        if (tail > 0) {
+            System.arraycopy(data, end * dims, data, start * dims, tail * dims)
+            System.arraycopy(norms, end, norms, start, tail)
+        }
+        labels.subList(start, end).clear()
+        for (i in identity + 1..identities.size) {
+            identityStarts[i] -= count
+        }
+        removeIdentitySlot(identity)
+        version++
+        return true
+    }
+
+    fun clear() {
+        labels.clear()
+        identities.clear()
+        identityIndex.clear()
+        version++
+    }
+
+    /**
+     * Independent copy holding exactly the current rows.
+     */
+    fun copy(): EmbeddingGallery =
+        wrap(dims, ArrayList(labels), data.copyOf(size * dims), norms.copyOf(size))
+
+    fun labelAt(row: Int): String = labels[row]
+
+    fun offsetOf(row: Int): Int = row * dims
+
+    fun normAt(row: Int): Float = norms[row]
+
+    fun copyVector(row: Int, out: FloatArray = FloatArray(dims)): FloatArray {
+        checkRow(row)
+        System.arraycopy(data, row * dims, out, 0, dims)
+        return out
+    }
+
+    fun indexOf(label: String): Int = identityIndex[label]?.let { identityStarts[it] } ?: -1
+
+    fun identityLabel(identity: Int): String = identities[identity]
+
+    fun identityOf(label: String): Int = identityIndex[label] ?: -1
+
+    /**
+     * First row of [identity]'s template block.
+     */
+    fun identityStart(identity: Int): Int = identityStarts[identity]
+
+    /**
+     * One past the last row of [identity]'s template block.
+     */
+    fun identityEnd(identity: Int): Int = identityStarts[identity + 1]
+
+    private fun removeIdentitySlot(identity: Int) {
+        identityIndex.remove(identities.removeAt(identity))
+        System.arraycopy(
+            identityStarts, identity + 1,
+            identityStarts, identity,
+            identities.size + 1 - identity
+        )
+        for (i in identity until identities.size) {
+            identityIndex[identities[i]] = i
+        }
+    }
+
+    private fun ensureCapacity(rows: Int) {
+        if (rows <= norms.size) return
+        val newRows = maxOf(rows, norms.size * 2)
+        data = data.copyOf(newRows * dims)
+        norms = norms.copyOf(newRows)
+    }
+
+    private fun ensureIdentityCapacity(count: Int) {
+        if (count + 1 <= identityStarts.size) return
+        identityStarts = identityStarts.copyOf(maxOf(count + 1, identityStarts.size * 2))
+    }
+
+    private fun checkRow(row: Int) {
+        if (row < 0 || row >= size) throw IndexOutOfBoundsException("Row $row, size $size")
+    }
+
+    companion object {
+
+        /**
+         * Builds a gallery around already packed [data] and [norms] without copying them.
+         * [labels] must list one label per row with each identity's rows adjacent.
+         */
+        fun wrap(
+            dims: Int,
+            labels: List<String>,
+            data: FloatArray,
+            norms: FloatArray
+        ): EmbeddingGallery {
+            require(norms.size >= labels.size && data.size >= norms.size * dims) {
+                "Packed arrays are too small for ${labels.size} rows"
+            }
+            val gallery = EmbeddingGallery(dims, 0)
+            gallery.data = data
+            gallery.norms = norms
+            gallery.labels.addAll(labels)
+            gallery.identityStarts = IntArray(labels.size + 1)
+            for (row in labels.indices) {
+                val label = labels[row]
+                if (row > 0 && labels[row - 1] == label) {
+                    gallery.identityStarts[gallery.identities.size] = row + 1
+                    continue
+                }
+                require(!gallery.identityIndex.containsKey(label)) {
+                    "Rows of identity '$label' are not contiguous"
+                }
+                gallery.identityIndex[label] = gallery.identities.size
+                gallery.identities.add(label)
+                gallery.identityStarts[gallery.identities.size] = row + 1
+            }
+            return gallery
+        }
+
+        fun from(dims: Int, templates: List<Pair<String, FloatArray>>): EmbeddingGallery {
+            val gallery = EmbeddingGallery(dims, templates.size)
+            for ((label, embedding) in templates) {
+                gallery.add(label, embedding)
+            }
+            return gallery
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.face.vision.model
+
+/**
+ * Looks up the enrolled identities closest to a probe embedding, best first. Scores are in
+ * the units of [metric], so they compare directly against the [ModelInfo] thresholds.
+ */
+interface FaceMatcher {
+
+    val metric: DistanceMetric
+
+    val size: Int
+
+    fun search(probe: FloatArray, k: Int): List<MatchResult>
+
+}
+
+data class MatchResult(val label: String, val score: Float)
+
+enum class DistanceMetric {
+    L2,
+    COSINE;
+
+    fun accepts(score: Float, model: ModelInfo): Boolean = when (this) {
+        L2 -> score <= model.l2Threshold
+        COSINE -> score > model.cosineThreshold
+    }
+}
+
+/**
+ * Fraction of the [exact] top-[k] labels that this matcher also returns, averaged over [probes].
+ */
+fun FaceMatcher.recallAgainst(exact: FaceMatcher, probes: List<FloatArray>, k: Int): Float {
+    if (probes.isEmpty()) return 1f
+    var hits = 0
+    var total = 0
+    for (probe in probes) {
+        val expected = exact.search(probe, k).map { it.label }
+        val actual = search(probe, k).map { it.label }.toHashSet()
+        hits += expected.count { it in actual }
+        total += expected.size
+    }
+    return if (total == 0) 1f else hits.toFloat() / total
+}
@@ -2,6 +2,7 @@ package com.face.vision.model
 
 import android.content.Context
 import android.graphics.Bitmap
+import android.os.SystemClock
 import android.util.Log
 import org.tensorflow.lite.DataType
 import org.tensorflow.lite.Interpreter
@@ -15,15 +16,21 @@ import org.tensorflow.lite.support.image.ops.ResizeOp
 import org.tensorflow.lite.support.tensorbuffer.TensorBuffer
 import org.tensorflow.lite.support.tensorbuffer.TensorBufferFloat
 import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import kotlin.math.max
+import kotlin.math.min
 import kotlin.math.pow
 import kotlin.math.sqrt
 
 
-class FaceNetModel(context: Context,val model: ModelInfo, useGpu:Boolean = true,useXNNPack:Boolean = true) {
+class FaceNetModel(context: Context,val model: ModelInfo, private val useGpu:Boolean = true,private val useXNNPack:Boolean = true) {
 
     private val threads = 4
 
+    private val modelBuffer = FileUtil.loadMappedFile(context, model.assetsFilename)
+
+    private val delegates = ArrayList<GpuDelegate>()
+
     private var interpreter: Interpreter
 
     private val imageTensorProcessor = ImageProcessor.Builder()
@@ -32,11 +39,17 @@ class FaceNetModel(context: Context,val model: ModelInfo, useGpu:Boolean = true,
         .build()
 
     init {
+        interpreter = newInterpreter()
+    }
+
+    private fun newInterpreter(): Interpreter {
         val interpreterOptions = Interpreter.Options().apply {
 
             if (useGpu) {
                 if (CompatibilityList().isDelegateSupportedOnThisDevice) {
-                    addDelegate(GpuDelegate(CompatibilityList().bestOptionsForThisDevice))
+                    val delegate = GpuDelegate(CompatibilityList().bestOptionsForThisDevice)
+                    delegates.add(delegate)
+                    addDelegate(delegate)
                 }
             } else {
                 numThreads = threads
@@ -44,14 +57,172 @@ class FaceNetModel(context: Context,val model: ModelInfo, useGpu:Boolean = true,
             setUseXNNPACK(useXNNPack)
             useNNAPI = true
         }
-        interpreter =
-            Interpreter(FileUtil.loadMappedFile(context, model.assetsFilename), interpreterOptions)
+        return Interpreter(modelBuffer, interpreterOptions)
     }
 
+    /**
+     * Largest batch [getFaceEmbeddings] will run in one interpreter call.
+     */
+    var maxBatchSize = 8
+
+    /**
+     * Batches taking longer than this are halved, batches well under it are doubled up to
+     * [maxBatchSize].
+     */
+    var batchLatencyCapMs = 150L
+
+    // Batches run on their own interpreter under their own lock, so live frames never wait
+    // behind an enrollment batch and neither path reshapes the other's input tensor.
+    private val batchLock = Any()
+    private var batchInterpreter: Interpreter? = null
+    private var batchSize = 1
+    private var inputBatch = 1
+    private var batchingSupported = true
+    private var batchInput: ByteBuffer? = null
+    private var batchOutput: ByteBuffer? = null
+    private var closed = false
+    private val singleOutput = ByteBuffer.allocateDirect(model.outputDims * 4)
+        .order(ByteOrder.nativeOrder())
+    private val singleOutputValues = singleOutput.asFloatBuffer()
+
+    @Synchronized
     fun getFaceEmbedding(image: Bitmap): FloatArray {
         return runFaceNet(convertBitmapToBuffer(image))[0]
     }
 
+    /**
+     * Embeds an already preprocessed single-image input tensor, e.g. one written by
+     * [com.face.vision.utils.RgbaPlaneSampler].
+     */
+    @Synchronized
+    fun getFaceEmbedding(
+        tensor: ByteBuffer,
+        out: FloatArray = FloatArray(model.outputDims)
+    ): FloatArray {
+        require(out.size == model.outputDims) {
+            "Expected ${model.outputDims} dims, got ${out.size}"
+        }
+        tensor.rewind()
+        singleOutput.rewind()
+        interpreter.run(tensor, singleOutput)
+        singleOutputValues.rewind()
+        singleOutputValues.get(out)
+        return out
+    }
+
+    /**
+     * Embeds [images] in adaptively sized batches into [out], one array per image in order,
+     * so a caller embedding many batches can reuse the same arrays.
+     */
+    fun getFaceEmbeddings(
+        images: List<Bitmap>,
+        out: List<FloatArray> = List(images.size) { FloatArray(model.outputDims) }
+    ): List<FloatArray> = synchronized(batchLock) {
+        require(out.size >= images.size && out.all { it.size == model.outputDims }) {
+            "Expected ${images.size} outputs of ${model.outputDims} dims"
+        }
+        check(!closed) { "FaceNetModel is closed" }
+        val batchInterpreter = batchInterpreter ?: newInterpreter().also { batchInterpreter = it }
+        var from = 0
+        while (from < images.size) {
+            val size = if (batchingSupported) batchSize else 1
+            val n = min(size, images.size - from)
+            val t1 = SystemClock.elapsedRealtime()
+            runBatch(batchInterpreter, images.subList(from, from + n), size, out.subList(from, from + n))
+            val elapsed = SystemClock.elapsedRealtime() - t1
+            if (elapsed > batchLatencyCapMs && batchSize > 1) {
+                batchSize /= 2
+            } else if (elapsed < batchLatencyCapMs / 2 && n == batchSize) {
+                batchSize = min(batchSize * 2, maxBatchSize.coerceAtLeast(1))
+            }
+            from += n
+        }
+        out
+    }
+
+    private fun runBatch(
+        interpreter: Interpreter,
+        images: List<Bitmap>,
+        size: Int,
+        out: List<FloatArray>
+    ) {
+        if (!resizeInput(interpreter, size)) {
+            for (i in images.indices) {
+                runBatch(interpreter, images.subList(i, i + 1), 1, out.subList(i, i + 1))
+            }
+            return
+        }
+        val frameBytes = model.inputDims * model.inputDims * 3 * 4
+        var input = batchInput
+        if (input == null || input.capacity() < size * frameBytes) {
+            input = ByteBuffer.allocateDirect(maxBatchSize.coerceAtLeast(size) * frameBytes)
+                .order(ByteOrder.nativeOrder())
+            batchInput = input
+        }
+        input!!.clear()
+        for (image in images) {
+            val frame = convertBitmapToBuffer(image)
+            frame.rewind()
+            input.put(frame)
+        }
+        // Padding rows are left over from earlier batches; their outputs are dropped
+        input.position(0)
+        input.limit(size * frameBytes)
+        // The output must match the batch exactly, so it is only replaced when the size changes
+        var output = batchOutput
+        if (output == null || output.capacity() != size * model.outputDims * 4) {
+            output = ByteBuffer.allocateDirect(size * model.outputDims * 4)
+                .order(ByteOrder.nativeOrder())
+            batchOutput = output
+        }
+        output!!.rewind()
+        interpreter.run(input, output)
+        output.rewind()
+        val values = output.asFloatBuffer()
+        for (embedding in out.subList(0, images.size)) {
+            values.get(embedding)
+        }
+    }
+
+    /**
+     * Reshapes the batch interpreter's input to [batch] images when that changes. Delegates
+     * that cannot be reshaped turn batching off and leave the interpreter at batch 1.
+     */
+    private fun resizeInput(interpreter: Interpreter, batch: Int): Boolean {
+        if (batch == inputBatch) return true
+        return try {
+            interpreter.resizeInput(0, intArrayOf(batch, model.inputDims, model.inputDims, 3))
+            interpreter.allocateTensors()
+            inputBatch = batch
+            true
+        } catch (e: RuntimeException) {
+            Log.w("FaceNetModel", "Batch of $batch not supported, falling back to 1", e)
+            batchingSupported = false
+            batchSize = 1
+            if (batch != 1) {
+                interpreter.resizeInput(0, intArrayOf(1, model.inputDims, model.inputDims, 3))
+                interpreter.allocateTensors()
+                inputBatch = 1
+            }
+            false
+        }
+    }
+
+
+    /**
+     * Frees the interpreters and their GPU delegates; the model cannot be used afterwards.
+     */
+    @Synchronized
+    fun close() {
+        synchronized(batchLock) {
+            closed = true
+            interpreter.close()
+            batchInterpreter?.close()
+            batchInterpreter = null
+            delegates.forEach { it.close() }
+            delegates.clear()
+        }
+    }
 
     private fun runFaceNet(inputs: Any): Array<FloatArray> {
         val t1 = System.currentTimeMillis()
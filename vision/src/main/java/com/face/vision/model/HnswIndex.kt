@@ -0,0 +1,575 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.Random
+import kotlin.math.ln
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
+
+/**
+ * HNSW graph over face templates for approximate 1:N lookup. Results list each label once,
+ * scored by its closest template; removed templates keep routing until [compact].
+ */
+class HnswIndex(
+    val dims: Int,
+    override val metric: DistanceMetric = DistanceMetric.L2,
+    val m: Int = 32,
+    val efConstruction: Int = 100,
+    var ef: Int = 128,
+    private val seed: Long = 42L,
+    initialCapacity: Int = 1024
+) : FaceMatcher {
+
+    /**
+     * [sync] compacts the graph once more than this fraction of its nodes are removed.
+     */
+    var maxDeletedFraction = 0.25f
+
+    private val maxM0 = m * 2
+    private val levelMultiplier = 1.0 / ln(max(m, 2).toDouble())
+    private var random = Random(seed)
+
+    private var capacity = initialCapacity.coerceAtLeast(1)
+    private var vectors = FloatArray(capacity * dims)
+    private var layer0 = IntArray(capacity * (maxM0 + 1))
+    private var upperLayers = arrayOfNulls<IntArray>(capacity)
+    private var deleted = BooleanArray(capacity)
+    private var visited = IntArray(capacity)
+    private var visitEpoch = 0
+
+    private val labels = ArrayList<String>(capacity)
+    private val nodesOf = HashMap<String, MutableList<Int>>()
+
+    private var count = 0
+    private var liveCount = 0
+    private var entryPoint = -1
+    private var maxLevel = -1
+
+    private val candidates = NeighborHeap(64, maxHeap = false)
+    private val results = NeighborHeap(64, maxHeap = true)
+    private var resultKeys = FloatArray(64)
+    private var resultIds = IntArray(64)
+    private val query = FloatArray(dims)
+    private val newLinks = IntArray(maxM0)
+    private val linkIds = IntArray(maxM0 + 1)
+    private val linkKeys = FloatArray(maxM0 + 1)
+    private val keptLinks = IntArray(maxM0 + 1)
+
+    override val size: Int
+        get() = liveCount
+
+    /**
+     * Nodes in the graph, removed ones included.
+     */
+    val nodeCount: Int
+        get() = count
+
+    val deletedCount: Int
+        get() = count - liveCount
+
+    /**
+     * Inserts another template for [label].
+     */
+    @Synchronized
+    fun add(label: String, embedding: FloatArray): Int {
+        require(embedding.size == dims) { "Expected $dims dims, got ${embedding.size}" }
+        return insert(label, embedding, 0, metric == DistanceMetric.COSINE)
+    }
+
+    /**
+     * Removes every template of [label].
+     */
+    @Synchronized
+    fun remove(label: String): Boolean {
+        val nodes = nodesOf.remove(label) ?: return false
+        for (node in nodes) {
+            deleted[node] = true
+        }
+        liveCount -= nodes.size
+        return true
+    }
+
+    @Synchronized
+    fun contains(label: String) = nodesOf.containsKey(label)
+
+    @Synchronized
+    override fun search(probe: FloatArray, k: Int): List<MatchResult> {
+        if (liveCount == 0 || k <= 0) return emptyList()
+        System.arraycopy(probe, 0, query, 0, dims)
+        if (metric == DistanceMetric.COSINE) {
+            VectorMath.normalize(query)
+        }
+        var ep = entryPoint
+        for (l in maxLevel downTo 1) {
+            ep = greedyClosest(query, 0, ep, l)
+        }
+        searchLayer(query, 0, ep, max(ef, k), 0, liveOnly = true)
+        val n = drainResults()
+        val matches = ArrayList<MatchResult>(min(k, n))
+        for (i in 0 until n) {
+            if (matches.size == k) break
+            val label = labels[resultIds[i]]
+            if (matches.any { it.label == label }) continue
+            matches.add(MatchResult(label, toScore(resultKeys[i])))
+        }
+        return matches
+    }
+
+    /**
+     * Brings the index in line with [gallery]. Returns false if nothing had to change.
+     */
+    @Synchronized
+    fun sync(gallery: EmbeddingGallery): Boolean {
+        require(gallery.dims == dims) { "Expected $dims dims, got ${gallery.dims}" }
+        val normalize = metric == DistanceMetric.COSINE
+        var changed = false
+        for ((label, nodes) in nodesOf.entries.toList()) {
+            val identity = gallery.identityOf(label)
+            if (identity < 0 || !holds(nodes, gallery, identity)) {
+                remove(label)
+                changed = true
+            }
+        }
+        for (identity in 0 until gallery.identityCount) {
+            val label = gallery.identityLabel(identity)
+            if (nodesOf.containsKey(label)) continue
+            for (row in gallery.identityStart(identity) until gallery.identityEnd(identity)) {
+                insert(label, gallery.data, gallery.offsetOf(row), normalize)
+            }
+            changed = true
+        }
+        if (deletedCount > count * maxDeletedFraction) {
+            compact()
+        }
+        return changed
+    }
+
+    /**
+     * Rebuilds the graph from the templates that were not removed.
+     */
+    @Synchronized
+    fun compact() {
+        if (deletedCount == 0) return
+        val fresh = HnswIndex(dims, metric, m, efConstruction, ef, seed, liveCount)
+        for (node in 0 until count) {
+            if (!deleted[node]) fresh.insert(labels[node], vectors, node * dims, false)
+        }
+        capacity = fresh.capacity
+        vectors = fresh.vectors
+        layer0 = fresh.layer0
+        upperLayers = fresh.upperLayers
+        deleted = fresh.deleted
+        visited = fresh.visited
+        visitEpoch = 0
+        labels.clear()
+        labels.addAll(fresh.labels)
+        nodesOf.clear()
+        nodesOf.putAll(fresh.nodesOf)
+        count = fresh.count
+        liveCount = fresh.liveCount
+        entryPoint = fresh.entryPoint
+        maxLevel = fresh.maxLevel
+        random = fresh.random
+    }
+
+    @Synchronized
+    @Throws(IOException::class)
+    fun write(file: File) {
+        val tmp = File(file.parentFile, file.name + ".tmp")
+        DataOutputStream(FileOutputStream(tmp).buffered()).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(dims)
+            out.writeInt(metric.ordinal)
+            out.writeInt(m)
+            out.writeInt(efConstruction)
+            out.writeInt(count)
+            out.writeInt(entryPoint)
+            out.writeInt(maxLevel)
+            val row = ByteBuffer.allocate(dims * 4 + (maxM0 + 1) * 4)
+            for (node in 0 until count) {
+                out.writeUTF(labels[node])
+                out.writeBoolean(deleted[node])
+                row.clear()
+                row.asFloatBuffer().put(vectors, node * dims, dims)
+                row.position(dims * 4)
+                row.asIntBuffer().put(layer0, node * (maxM0 + 1), maxM0 + 1)
+                out.write(row.array())
+                val upper = upperLayers[node]
+                out.writeInt(upper?.size ?: 0)
+                upper?.forEach { out.writeInt(it) }
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            throw IOException("Could not replace $file")
+        }
+    }
+
+    private fun levelOf(node: Int): Int = (upperLayers[node]?.size ?: 0) / (m + 1)
+
+    private fun checkLinks() {
+        if (entryPoint >= 0 && levelOf(entryPoint) != maxLevel) {
+            throw IOException("Corrupt index entry point")
+        }
+        for (node in 0 until count) {
+            for (level in 0..levelOf(node)) {
+                val array = neighborArray(node, level)
+                val base = neighborBase(node, level)
+                if (array[base] !in 0..maxConnections(level)) {
+                    throw IOException("Corrupt index node $node")
+                }
+                for (i in 1..array[base]) {
+                    val neighbor = array[base + i]
+                    if (neighbor !in 0 until count || levelOf(neighbor) < level) {
+                        throw IOException("Corrupt index link $node -> $neighbor")
+                    }
+                }
+            }
+        }
+    }
+
+    private fun insert(label: String, source: FloatArray, offset: Int, normalize: Boolean): Int {
+        ensureCapacity(count + 1)
+        val node = count++
+        val nodeOffset = node * dims
+        System.arraycopy(source, offset, vectors, nodeOffset, dims)
+        if (normalize) {
+            VectorMath.normalize(vectors, nodeOffset, dims)
+        }
+        val level = randomLevel()
+        layer0[node * (maxM0 + 1)] = 0
+        upperLayers[node] = if (level > 0) IntArray(level * (m + 1)) else null
+        deleted[node] = false
+        labels.add(label)
+        nodesOf.getOrPut(label) { ArrayList(1) }.add(node)
+        liveCount++
+
+        if (entryPoint == -1) {
+            entryPoint = node
+            maxLevel = level
+            return node
+        }
+
+        var ep = entryPoint
+        for (l in maxLevel downTo level + 1) {
+            ep = greedyClosest(vectors, nodeOffset, ep, l)
+        }
+        for (l in min(level, maxLevel) downTo 0) {
+            searchLayer(vectors, nodeOffset, ep, efConstruction, l, liveOnly = false)
+            val n = drainResults()
+            ep = resultIds[0]
+            val kept = selectNeighbors(resultIds, resultKeys, n, maxConnections(l), newLinks)
+            setNeighbors(node, l, newLinks, kept)
+            for (i in 0 until kept) {
+                link(newLinks[i], node, l)
+            }
+        }
+        if (level > maxLevel) {
+            maxLevel = level
+            entryPoint = node
+        }
+        return node
+    }
+
+    private fun holds(nodes: List<Int>, gallery: EmbeddingGallery, identity: Int): Boolean {
+        val start = gallery.identityStart(identity)
+        if (nodes.size != gallery.identityEnd(identity) - start) return false
+        for (i in nodes.indices) {
+            System.arraycopy(gallery.data, gallery.offsetOf(start + i), query, 0, dims)
+            if (metric == DistanceMetric.COSINE) {
+                VectorMath.normalize(query)
+            }
+            val offset = nodes[i] * dims
+            for (d in 0 until dims) {
+                if (vectors[offset + d] != query[d]) return false
+            }
+        }
+        return true
+    }
+
+    private fun toScore(distance: Float): Float =
+        if (metric == DistanceMetric.COSINE) 1f - distance else sqrt(distance)
+
+    private fun distance(q: FloatArray, qOffset: Int, node: Int): Float =
+        if (metric == DistanceMetric.COSINE) {
+            1f - VectorMath.dot(q, qOffset, vectors, node * dims, dims)
+        } else {
+            VectorMath.squaredL2(q, qOffset, vectors, node * dims, dims)
+        }
+
+    private fun maxConnections(level: Int) = if (level == 0) maxM0 else m
+
+    private fun randomLevel(): Int = (-ln(1.0 - random.nextDouble()) * levelMultiplier).toInt()
+
+    private fun neighborArray(node: Int, level: Int): IntArray =
+        if (level == 0) layer0 else upperLayers[node]!!
+
+    private fun neighborBase(node: Int, level: Int): Int =
+        if (level == 0) node * (maxM0 + 1) else (level - 1) * (m + 1)
+
+    private fun setNeighbors(node: Int, level: Int, neighbors: IntArray, n: Int) {
+        val array = neighborArray(node, level)
+        val base = neighborBase(node, level)
+        array[base] = n
+        System.arraycopy(neighbors, 0, array, base + 1, n)
+    }
+
+    private fun link(from: Int, to: Int, level: Int) {
+        val array = neighborArray(from, level)
+        val base = neighborBase(from, level)
+        val n = array[base]
+        val limit = maxConnections(level)
+        if (n < limit) {
+            array[base + 1 + n] = to
+            array[base] = n + 1
+            return
+        }
+        val fromOffset = from * dims
+        val toDistance = distance(vectors, fromOffset, to)
+        for (i in 0 until n) {
+            linkIds[i] = array[base + 1 + i]
+            linkKeys[i] = distance(vectors, fromOffset, linkIds[i])
+        }
+        if (shadowed(to, toDistance, n)) return
+        linkIds[n] = to
+        linkKeys[n] = toDistance
+        sortByKey(linkIds, linkKeys, n + 1)
+        val kept = selectNeighbors(linkIds, linkKeys, n + 1, limit, keptLinks)
+        setNeighbors(from, level, keptLinks, kept)
+    }
+
+    /**
+     * True if one of the first [n] entries of [linkIds] that is closer to the base node than
+     * [to] is also closer to [to] than the base node is, i.e. [selectNeighbors] would prune [to].
+     */
+    private fun shadowed(to: Int, toDistance: Float, n: Int): Boolean {
+        val toOffset = to * dims
+        for (i in 0 until n) {
+            if (linkKeys[i] < toDistance && distance(vectors, toOffset, linkIds[i]) < toDistance) {
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun greedyClosest(q: FloatArray, qOffset: Int, start: Int, level: Int): Int {
+        var current = start
+        var currentDistance = distance(q, qOffset, current)
+        var changed = true
+        while (changed) {
+            changed = false
+            val array = neighborArray(current, level)
+            val base = neighborBase(current, level)
+            for (i in 1..array[base]) {
+                val candidate = array[base + i]
+                val d = distance(q, qOffset, candidate)
+                if (d < currentDistance) {
+                    currentDistance = d
+                    current = candidate
+                    changed = true
+                }
+            }
+        }
+        return current
+    }
+
+    /**
+     * Beam search on one layer. The [ef] closest nodes found are left in [results]; with
+     * [liveOnly] removed nodes are still expanded but never kept.
+     */
+    private fun searchLayer(
+        q: FloatArray,
+        qOffset: Int,
+        start: Int,
+        ef: Int,
+        level: Int,
+        liveOnly: Boolean
+    ) {
+        val epoch = nextVisitEpoch()
+        candidates.clear()
+        results.clear()
+        val d = distance(q, qOffset, start)
+        candidates.push(d, start)
+        if (!liveOnly || !deleted[start]) results.push(d, start)
+        visited[start] = epoch
+        while (candidates.isNotEmpty()) {
+            val currentDistance = candidates.peekKey()
+            val current = candidates.peekId()
+            if (results.size >= ef && currentDistance > results.peekKey()) break
+            candidates.pop()
+            val array = neighborArray(current, level)
+            val base = neighborBase(current, level)
+            for (i in 1..array[base]) {
+                val neighbor = array[base + i]
+                if (visited[neighbor] == epoch) continue
+                visited[neighbor] = epoch
+                val nd = distance(q, qOffset, neighbor)
+                if (results.size < ef || nd < results.peekKey()) {
+                    candidates.push(nd, neighbor)
+                    if (!liveOnly || !deleted[neighbor]) {
+                        results.push(nd, neighbor)
+                        if (results.size > ef) results.pop()
+                    }
+                }
+            }
+        }
+    }
+
+    private fun drainResults(): Int {
+        if (resultKeys.size < results.size) {
+            resultKeys = FloatArray(results.size)
+            resultIds = IntArray(results.size)
+        }
+        return results.drainAscending(resultKeys, resultIds)
+    }
+
+    /**
+     * HNSW neighbour heuristic over candidates sorted by distance. Writes the kept nodes to
+     * [out] and returns how many there are.
+     */
+    private fun selectNeighbors(
+        nodes: IntArray,
+        keys: FloatArray,
+        n: Int,
+        limit: Int,
+        out: IntArray
+    ): Int {
+        if (n <= limit) {
+            System.arraycopy(nodes, 0, out, 0, n)
+            return n
+        }
+        var selectedCount = 0
+        for (i in 0 until n) {
+            if (selectedCount == limit) break
+            val candidate = nodes[i]
+            var good = true
+            for (j in 0 until selectedCount) {
+                if (distance(vectors, candidate * dims, out[j]) < keys[i]) {
+                    good = false
+                    break
+                }
+            }
+            if (good) out[selectedCount++] = candidate
+        }
+        return selectedCount
+    }
+
+    private fun sortByKey(nodes: IntArray, keys: FloatArray, n: Int) {
+        for (i in 1 until n) {
+            val key = keys[i]
+            val node = nodes[i]
+            var j = i - 1
+            while (j >= 0 && keys[j] > key) {
+                keys[j + 1] = keys[j]
+                nodes[j + 1] = nodes[j]
+                j--
+            }
+            keys[j + 1] = key
+            nodes[j + 1] = node
+        }
+    }
+
+    private fun nextVisitEpoch(): Int {
+        if (visitEpoch == Int.MAX_VALUE) {
+            visited.fill(0)
+            visitEpoch = 0
+        }
+        return ++visitEpoch
+    }
+
+    private fun ensureCapacity(nodes: Int) {
+        if (nodes <= capacity) return
+        capacity = max(nodes, capacity * 2)
+        vectors = vectors.copyOf(capacity * dims)
+        layer0 = layer0.copyOf(capacity * (maxM0 + 1))
+        upperLayers = upperLayers.copyOf(capacity)
+        deleted = deleted.copyOf(capacity)
+        visited = visited.copyOf(capacity)
+    }
+
+    companion object {
+
+        private const val MAGIC = 0x4652484E
+        private const val VERSION = 1
+
+        fun from(
+            gallery: EmbeddingGallery,
+            metric: DistanceMetric = DistanceMetric.L2,
+            m: Int = 32,
+            efConstruction: Int = 100
+        ): HnswIndex {
+            val index = HnswIndex(
+                gallery.dims,
+                metric,
+                m,
+                efConstruction,
+                initialCapacity = gallery.size
+            )
+            index.sync(gallery)
+            return index
+        }
+
+        /**
+         * Loads a graph saved by [write]. A malformed file raises [IOException].
+         */
+        @Throws(IOException::class)
+        fun read(file: File): HnswIndex =
+            DataInputStream(FileInputStream(file).buffered()).use { input ->
+                if (input.readInt() != MAGIC) throw IOException("Not an HNSW index")
+                val version = input.readInt()
+                if (version != VERSION) throw IOException("Unsupported index version $version")
+                val dims = input.readInt()
+                val metric = DistanceMetric.values().getOrNull(input.readInt())
+                val m = input.readInt()
+                val efConstruction = input.readInt()
+                val count = input.readInt()
+                if (dims <= 0 || metric == null || m <= 0 || count < 0) {
+                    throw IOException("Corrupt index header")
+                }
+                val index = HnswIndex(dims, metric, m, efConstruction, initialCapacity = count)
+                index.entryPoint = input.readInt()
+                index.maxLevel = input.readInt()
+                if (index.entryPoint !in -1 until count) throw IOException("Corrupt index header")
+                val stride = index.maxM0 + 1
+                val row = ByteArray(dims * 4 + stride * 4)
+                val rowBuffer = ByteBuffer.wrap(row)
+                for (node in 0 until count) {
+                    val label = input.readUTF()
+                    val removed = input.readBoolean()
+                    input.readFully(row)
+                    rowBuffer.clear()
+                    rowBuffer.asFloatBuffer().get(index.vectors, node * dims, dims)
+                    rowBuffer.position(dims * 4)
+                    rowBuffer.asIntBuffer().get(index.layer0, node * stride, stride)
+                    val upperSize = input.readInt()
+                    if (upperSize < 0 || upperSize % (m + 1) != 0) {
+                        throw IOException("Corrupt index node $node")
+                    }
+                    index.upperLayers[node] = if (upperSize > 0) {
+                        IntArray(upperSize) { input.readInt() }
+                    } else {
+                        null
+                    }
+                    index.labels.add(label)
+                    index.deleted[node] = removed
+                    if (!removed) {
+                        index.nodesOf.getOrPut(label) { ArrayList(1) }.add(node)
+                        index.liveCount++
+                    }
+                }
+                index.count = count
+                index.checkLinks()
+                index
+            }
+    }
+
+}
@@ -0,0 +1,222 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
+
+enum class ScoreAggregation {
+    /** Average score over all templates of an identity. */
+    MEAN,
+
+    /** Best single template: highest similarity or smallest distance. */
+    BEST,
+
+    /** Score against the mean of an identity's templates; one comparison per identity. */
+    CENTROID
+}
+
+/**
+ * Ranks identities rather than templates of an [EmbeddingGallery], combining each
+ * identity's template scores by [aggregation]. With [threshold] set, only identities that
+ * pass it are returned and L2 scans stop as soon as an identity cannot.
+ */
+class IdentityMatcher(
+    private val gallery: EmbeddingGallery,
+    override val metric: DistanceMetric = DistanceMetric.L2,
+    val aggregation: ScoreAggregation = ScoreAggregation.MEAN,
+    private val threshold: Float? = null
+) : FaceMatcher {
+
+    // Largest accepted ranking key, in the units scan() stores in the heap
+    private val limit = when {
+        threshold == null -> Float.MAX_VALUE
+        metric == DistanceMetric.COSINE -> -threshold
+        aggregation == ScoreAggregation.MEAN -> threshold
+        else -> threshold * threshold
+    }
+
+    private val heap = NeighborHeap(16, maxHeap = true)
+    private var keys = FloatArray(16)
+    private var ids = IntArray(16)
+
+    private var centroids = FloatArray(0)
+    private var centroidNorms = FloatArray(0)
+    private var centroidVersion = -1
+
+    override val size: Int
+        get() = gallery.identityCount
+
+    @Synchronized
+    override fun search(probe: FloatArray, k: Int): List<MatchResult> {
+        val identities = gallery.identityCount
+        if (identities == 0 || k <= 0) return emptyList()
+        prepare()
+        heap.clear()
+        scan(probe, VectorMath.norm(probe), 0, identities, k, heap)
+        return collect(heap)
+    }
+
+    /**
+     * Brings shared state such as the centroids up to date; call before concurrent [scan]s.
+     */
+    internal fun prepare() {
+        if (aggregation == ScoreAggregation.CENTROID) refreshCentroids(gallery.identityCount)
+    }
+
+    /**
+     * Scores identities [from] until [to] into [into], keeping its best [k]. Only reads shared
+     * state, so disjoint ranges may be scanned concurrently after [prepare].
+     */
+    internal fun scan(probe: FloatArray, probeNorm: Float, from: Int, to: Int, k: Int, into: NeighborHeap) {
+        when (aggregation) {
+            ScoreAggregation.MEAN -> scoreMean(probe, probeNorm, from, to, k, into)
+            ScoreAggregation.BEST -> scoreBest(probe, probeNorm, from, to, k, into)
+            ScoreAggregation.CENTROID -> scoreCentroids(probe, probeNorm, from, to, k, into)
+        }
+    }
+
+    internal fun collect(from: NeighborHeap): List<MatchResult> {
+        if (keys.size < from.size) {
+            keys = FloatArray(from.size)
+            ids = IntArray(from.size)
+        }
+        val n = from.drainAscending(keys, ids)
+        return List(n) { i -> MatchResult(gallery.identityLabel(ids[i]), toScore(keys[i])) }
+    }
+
+    /**
+     * Internal ranking key: smaller is better. Mean aggregation averages real L2 distances so
+     * the result compares against [ModelInfo.l2Threshold] exactly like a single template would.
+     */
+    private fun toScore(key: Float): Float = when {
+        metric == DistanceMetric.COSINE -> -key
+        aggregation == ScoreAggregation.MEAN -> key
+        else -> sqrt(key)
+    }
+
+    private fun bound(heap: NeighborHeap, k: Int): Float =
+        if (heap.size < k) limit else min(limit, heap.peekKey())
+
+    private fun offer(heap: NeighborHeap, key: Float, identity: Int, k: Int) {
+        if (if (metric == DistanceMetric.COSINE) key < limit else key <= limit) {
+            heap.offer(key, identity, k)
+        }
+    }
+
+    private fun scoreMean(
+        probe: FloatArray,
+        probeNorm: Float,
+        from: Int,
+        to: Int,
+        k: Int,
+        heap: NeighborHeap
+    ) {
+        val data = gallery.data
+        val dims = gallery.dims
+        for (identity in from until to) {
+            val start = gallery.identityStart(identity)
+            val end = gallery.identityEnd(identity)
+            var sum = 0f
+            if (metric == DistanceMetric.COSINE) {
+                for (row in start until end) {
+                    val offset = gallery.offsetOf(row)
+                    sum -= VectorMath.cosine(probe, 0, probeNorm, data, offset, gallery.normAt(row), dims)
+                }
+            } else {
+                val budget = bound(heap, k) * (end - start)
+                for (row in start until end) {
+                    val remaining = budget - sum
+                    if (remaining <= 0f) {
+                        sum = Float.POSITIVE_INFINITY
+                        break
+                    }
+                    val bound = if (remaining > MAX_SQUARABLE) Float.MAX_VALUE else remaining * remaining
+                    val offset = gallery.offsetOf(row)
+                    sum += sqrt(VectorMath.squaredL2Bounded(probe, 0, data, offset, dims, bound))
+                }
+                if (sum > budget) continue
+            }
+            offer(heap, sum / (end - start), identity, k)
+        }
+    }
+
+    private fun scoreBest(
+        probe: FloatArray,
+        probeNorm: Float,
+        from: Int,
+        to: Int,
+        k: Int,
+        heap: NeighborHeap
+    ) {
+        val data = gallery.data
+        val dims = gallery.dims
+        for (identity in from until to) {
+            var best = Float.MAX_VALUE
+            for (row in gallery.identityStart(identity) until gallery.identityEnd(identity)) {
+                val offset = gallery.offsetOf(row)
+                val distance = if (metric == DistanceMetric.COSINE) {
+                    -VectorMath.cosine(probe, 0, probeNorm, data, offset, gallery.normAt(row), dims)
+                } else {
+                    VectorMath.squaredL2Bounded(probe, 0, data, offset, dims, min(best, bound(heap, k)))
+                }
+                best = min(best, distance)
+            }
+            offer(heap, best, identity, k)
+        }
+    }
+
+    private fun scoreCentroids(
+        probe: FloatArray,
+        probeNorm: Float,
+        from: Int,
+        to: Int,
+        k: Int,
+        heap: NeighborHeap
+    ) {
+        val dims = gallery.dims
+        for (identity in from until to) {
+            val offset = identity * dims
+            val distance = if (metric == DistanceMetric.COSINE) {
+                -VectorMath.cosine(probe, 0, probeNorm, centroids, offset, centroidNorms[identity], dims)
+            } else {
+                VectorMath.squaredL2Bounded(probe, 0, centroids, offset, dims, bound(heap, k))
+            }
+            offer(heap, distance, identity, k)
+        }
+    }
+
+    private fun refreshCentroids(identities: Int) {
+        if (centroidVersion == gallery.version) return
+        val dims = gallery.dims
+        if (centroids.size < identities * dims) {
+            centroids = FloatArray(identities * dims)
+            centroidNorms = FloatArray(identities)
+        }
+        val data = gallery.data
+        for (identity in 0 until identities) {
+            val start = gallery.identityStart(identity)
+            val end = gallery.identityEnd(identity)
+            val offset = identity * dims
+            centroids.fill(0f, offset, offset + dims)
+            for (row in start until end) {
+                val rowOffset = gallery.offsetOf(row)
+                if (metric == DistanceMetric.COSINE) {
+                    val inv = 1f / max(gallery.normAt(row), Float.MIN_VALUE)
+                    for (d in 0 until dims) centroids[offset + d] += data[rowOffset + d] * inv
+                } else {
+                    for (d in 0 until dims) centroids[offset + d] += data[rowOffset + d]
+                }
+            }
+            val inv = 1f / (end - start)
+            for (d in 0 until dims) centroids[offset + d] *= inv
+            centroidNorms[identity] = VectorMath.norm(centroids, offset, dims)
+        }
+        centroidVersion = gallery.version
+    }
+
+    private companion object {
+        const val MAX_SQUARABLE = 1.8e19f
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.face.vision.model
+
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * Symmetric int8 quantization of an embedding: `value[i] ≈ codes[i] * scale`.
+ */
+class Int8Embedding(val codes: ByteArray, val scale: Float) {
+
+    fun toFloatArray(out: FloatArray = FloatArray(codes.size)): FloatArray {
+        for (i in codes.indices) {
+            out[i] = codes[i] * scale
+        }
+        return out
+    }
+
+    companion object {
+
+        fun quantize(embedding: FloatArray): Int8Embedding {
+            val codes = ByteArray(embedding.size)
+            val scale = quantizeInto(embedding, codes, 0)
+            return Int8Embedding(codes, scale)
+        }
+
+        /**
+         * Writes the codes for [embedding] into [out] at [offset] and returns the scale.
+         */
+        fun quantizeInto(embedding: FloatArray, out: ByteArray, offset: Int): Float {
+            var maxAbs = 0f
+            for (v in embedding) {
+                val a = abs(v)
+                if (a > maxAbs) maxAbs = a
+            }
+            if (maxAbs == 0f) {
+                out.fill(0, offset, offset + embedding.size)
+                return 0f
+            }
+            val scale = maxAbs / 127f
+            val inv = 1f / scale
+            for (i in embedding.indices) {
+                out[offset + i] = (embedding[i] * inv).roundToInt().coerceIn(-127, 127).toByte()
+            }
+            return scale
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import kotlin.math.max
+
+/**
+ * int8 counterpart of [EmbeddingGallery]: one packed [ByteArray] of codes, a per-row scale
+ * and the integer squared norm of every code row. A quarter of the float gallery's memory.
+ */
+class Int8Gallery(val dims: Int, initialCapacity: Int = 16) {
+
+    var codes = ByteArray(dims * initialCapacity.coerceAtLeast(1))
+        private set
+
+    var scales = FloatArray(initialCapacity.coerceAtLeast(1))
+        private set
+
+    var squaredNorms = IntArray(initialCapacity.coerceAtLeast(1))
+        private set
+
+    private val labels = ArrayList<String>(initialCapacity)
+
+    val size: Int
+        get() = labels.size
+
+    fun isEmpty() = labels.isEmpty()
+
+    fun add(label: String, embedding: FloatArray): Int {
+        require(embedding.size == dims) { "Expected $dims dims, got ${embedding.size}" }
+        ensureCapacity(size + 1)
+        val row = size
+        val offset = row * dims
+        scales[row] = Int8Embedding.quantizeInto(embedding, codes, offset)
+        squaredNorms[row] = VectorMath.dot(codes, offset, codes, offset, dims)
+        labels.add(label)
+        return row
+    }
+
+    fun add(label: String, embedding: Int8Embedding): Int {
+        require(embedding.codes.size == dims) { "Expected $dims dims, got ${embedding.codes.size}" }
+        ensureCapacity(size + 1)
+        val row = size
+        val offset = row * dims
+        System.arraycopy(embedding.codes, 0, codes, offset, dims)
+        scales[row] = embedding.scale
+        squaredNorms[row] = VectorMath.dot(codes, offset, codes, offset, dims)
+        labels.add(label)
+        return row
+    }
+
+    fun labelAt(row: Int): String = labels[row]
+
+    fun offsetOf(row: Int): Int = row * dims
+
+    fun embeddingAt(row: Int): Int8Embedding =
+        Int8Embedding(codes.copyOfRange(row * dims, (row + 1) * dims), scales[row])
+
+    private fun ensureCapacity(rows: Int) {
+        if (rows <= scales.size) return
+        val newRows = max(rows, scales.size * 2)
+        codes = codes.copyOf(newRows * dims)
+        scales = scales.copyOf(newRows)
+        squaredNorms = squaredNorms.copyOf(newRows)
+    }
+
+    companion object {
+
+        fun from(gallery: EmbeddingGallery): Int8Gallery {
+            val quantized = Int8Gallery(gallery.dims, gallery.size)
+            val vector = FloatArray(gallery.dims)
+            for (row in 0 until gallery.size) {
+                quantized.add(gallery.labelAt(row), gallery.copyVector(row, vector))
+            }
+            return quantized
+        }
+
+        fun from(dims: Int, templates: List<Pair<String, FloatArray>>): Int8Gallery {
+            val quantized = Int8Gallery(dims, templates.size)
+            for ((label, embedding) in templates) {
+                quantized.add(label, embedding)
+            }
+            return quantized
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Exact scan over an [Int8Gallery]: one integer dot product per template, with the
+ * per-vector scales applied afterwards.
+ */
+class Int8Matcher(
+    private val gallery: Int8Gallery,
+    override val metric: DistanceMetric = DistanceMetric.L2
+) : FaceMatcher {
+
+    private val probeCodes = ByteArray(gallery.dims)
+    private val heap = NeighborHeap(16, maxHeap = true)
+    private var keys = FloatArray(16)
+    private var rows = IntArray(16)
+
+    override val size: Int
+        get() = gallery.size
+
+    @Synchronized
+    override fun search(probe: FloatArray, k: Int): List<MatchResult> {
+        if (gallery.isEmpty() || k <= 0) return emptyList()
+        val dims = gallery.dims
+        val probeScale = Int8Embedding.quantizeInto(probe, probeCodes, 0)
+        val probeSquaredNorm = VectorMath.dot(probeCodes, 0, probeCodes, 0, dims)
+        val codes = gallery.codes
+        val scales = gallery.scales
+        val squaredNorms = gallery.squaredNorms
+        heap.clear()
+        for (row in 0 until gallery.size) {
+            val dot = VectorMath.dot(probeCodes, 0, codes, row * dims, dims)
+            val distance = if (metric == DistanceMetric.COSINE) {
+                val denominator = sqrt(probeSquaredNorm.toFloat() * squaredNorms[row].toFloat())
+                if (denominator == 0f) 0f else -dot / denominator
+            } else {
+                val s = scales[row]
+                max(
+                    0f,
+                    probeScale * probeScale * probeSquaredNorm +
+                            s * s * squaredNorms[row] -
+                            2f * probeScale * s * dot
+                )
+            }
+            heap.offer(distance, row, k)
+        }
+        if (keys.size < heap.size) {
+            keys = FloatArray(heap.size)
+            rows = IntArray(heap.size)
+        }
+        val n = heap.drainAscending(keys, rows)
+        return List(n) { i ->
+            val score = if (metric == DistanceMetric.COSINE) -keys[i] else sqrt(keys[i])
+            MatchResult(gallery.labelAt(rows[i]), score)
+        }
+    }
+
+}
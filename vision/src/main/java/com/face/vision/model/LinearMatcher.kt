@@ -0,0 +1,162 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
+
+/**
+ * Exact nearest-neighbour scan over an [EmbeddingGallery]. With L2, a template is abandoned
+ * once it can no longer beat the k-th best or [threshold]; with [threshold] set, only
+ * templates that pass it are returned.
+ */
+class LinearMatcher(
+    private val gallery: EmbeddingGallery,
+    override val metric: DistanceMetric = DistanceMetric.L2,
+    private val threshold: Float? = null
+) : FaceMatcher {
+
+    private val heap = NeighborHeap(16, maxHeap = true)
+    private var keys = FloatArray(16)
+    private var rows = IntArray(16)
+
+    override val size: Int
+        get() = gallery.size
+
+    @Synchronized
+    override fun search(probe: FloatArray, k: Int): List<MatchResult> {
+        if (gallery.isEmpty() || k <= 0) return emptyList()
+        heap.clear()
+        scan(probe, 0, gallery.size, k, heap)
+        return collect(heap, k)
+    }
+
+    /**
+     * Top-[k] for each of [count] probes packed row by row in [probes], as a blocked matrix
+     * multiply. Nothing is abandoned early, so [search] can win for near-enrolled probes.
+     */
+    @Synchronized
+    fun matchAll(probes: FloatArray, count: Int, k: Int = 1): List<List<MatchResult>> {
+        val dims = gallery.dims
+        require(probes.size >= count * dims) { "Expected $count probes of $dims dims" }
+        val rowCount = gallery.size
+        if (count == 0) return emptyList()
+        if (rowCount == 0 || k <= 0) return List(count) { emptyList() }
+        val data = gallery.data
+        val cosine = metric == DistanceMetric.COSINE
+        val limit = when {
+            threshold == null -> Float.MAX_VALUE
+            cosine -> -threshold
+            else -> threshold * threshold
+        }
+        val probeNorms = FloatArray(count) { VectorMath.norm(probes, it * dims, dims) }
+        val heaps = Array(PROBE_BLOCK) { NeighborHeap(k, maxHeap = true) }
+        val dots = FloatArray(PROBE_BLOCK * GALLERY_BLOCK)
+        val results = ArrayList<List<MatchResult>>(count)
+
+        for (p0 in 0 until count step PROBE_BLOCK) {
+            val p1 = min(count, p0 + PROBE_BLOCK)
+            for (probeHeap in heaps) probeHeap.clear()
+            for (g0 in 0 until rowCount step GALLERY_BLOCK) {
+                val g1 = min(rowCount, g0 + GALLERY_BLOCK)
+                var p = p0
+                while (p + 4 <= p1) {
+                    for (row in g0 until g1) {
+                        val out = (row - g0) * PROBE_BLOCK + p - p0
+                        VectorMath.dot4x1(probes, p * dims, dims, data, gallery.offsetOf(row), dims, dots, out)
+                    }
+                    p += 4
+                }
+                while (p < p1) {
+                    for (row in g0 until g1) {
+                        dots[(row - g0) * PROBE_BLOCK + p - p0] =
+                            VectorMath.dot(probes, p * dims, data, gallery.offsetOf(row), dims)
+                    }
+                    p++
+                }
+                for (row in g0 until g1) {
+                    val rowNorm = gallery.normAt(row)
+                    val base = (row - g0) * PROBE_BLOCK - p0
+                    for (q in p0 until p1) {
+                        val dot = dots[base + q]
+                        val probeNorm = probeNorms[q]
+                        val distance = if (cosine) {
+                            val denominator = probeNorm * rowNorm
+                            if (denominator == 0f) 0f else -dot / denominator
+                        } else {
+                            max(0f, probeNorm * probeNorm + rowNorm * rowNorm - 2f * dot)
+                        }
+                        if (if (cosine) distance < limit else distance <= limit) {
+                            heaps[q - p0].offer(distance, row, k)
+                        }
+                    }
+                }
+            }
+            for (q in p0 until p1) {
+                results.add(collect(heaps[q - p0], k))
+            }
+        }
+        return results
+    }
+
+    /**
+     * Scores rows [from, to) into [into], keeping the [k] best. [into] holds squared L2
+     * distances or negated cosine similarities; [collect] turns it into results.
+     */
+    internal fun scan(probe: FloatArray, from: Int, to: Int, k: Int, into: NeighborHeap) {
+        if (metric == DistanceMetric.COSINE) {
+            scanCosine(probe, from, to, k, into)
+        } else {
+            scanL2(probe, from, to, k, into)
+        }
+    }
+
+    @Synchronized
+    internal fun collect(from: NeighborHeap, k: Int): List<MatchResult> {
+        if (keys.size < from.size) {
+            keys = FloatArray(from.size)
+            rows = IntArray(from.size)
+        }
+        val n = from.drainAscending(keys, rows)
+        return List(minOf(n, k)) { i ->
+            val score = if (metric == DistanceMetric.COSINE) -keys[i] else sqrt(keys[i])
+            MatchResult(gallery.labelAt(rows[i]), score)
+        }
+    }
+
+    private fun scanL2(probe: FloatArray, from: Int, to: Int, k: Int, into: NeighborHeap) {
+        val data = gallery.data
+        val dims = gallery.dims
+        val limit = threshold?.let { it * it } ?: Float.MAX_VALUE
+        for (row in from until to) {
+            val bound = if (into.size >= k) min(into.peekKey(), limit) else limit
+            val distance = VectorMath.squaredL2Bounded(
+                probe, 0, data, gallery.offsetOf(row), dims, bound
+            )
+            if (distance <= bound) {
+                into.offer(distance, row, k)
+            }
+        }
+    }
+
+    private fun scanCosine(probe: FloatArray, from: Int, to: Int, k: Int, into: NeighborHeap) {
+        val data = gallery.data
+        val dims = gallery.dims
+        val probeNorm = VectorMath.norm(probe)
+        val limit = threshold?.let { -it } ?: Float.MAX_VALUE
+        for (row in from until to) {
+            val distance = -VectorMath.cosine(
+                probe, 0, probeNorm, data, gallery.offsetOf(row), gallery.normAt(row), dims
+            )
+            if (distance < limit) {
+                into.offer(distance, row, k)
+            }
+        }
+    }
+
+    companion object {
+        private const val PROBE_BLOCK = 32
+        private const val GALLERY_BLOCK = 16
+    }
+
+}
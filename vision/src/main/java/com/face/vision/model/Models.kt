@@ -24,6 +24,10 @@ data class ModelInfo(
             "FaceNet-512 Quantized", "facenet_512_int_quantized.tflite", 0.3f, 23.56f, 512, 160
         )
 
+        val ALL = listOf(FACENET_512, FACENET_QUANTIZED, FACENET_512_QUANTIZED)
+
+        fun forName(name: String): ModelInfo? = ALL.firstOrNull { it.name == name }
+
     }
 
 }
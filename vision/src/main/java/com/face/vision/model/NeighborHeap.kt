@@ -0,0 +1,124 @@
+package com.face.vision.model
+
+/**
+ * Binary heap of (distance, id) pairs backed by primitive arrays. With [maxHeap] the largest
+ * distance sits on top, which makes it a bounded top-k collector; otherwise it is a min-heap.
+ */
+internal class NeighborHeap(capacity: Int, private val maxHeap: Boolean) {
+
+    private var keys = FloatArray(capacity.coerceAtLeast(1))
+    private var ids = IntArray(capacity.coerceAtLeast(1))
+
+    var size = 0
+        private set
+
+    fun isEmpty() = size == 0
+
+    fun isNotEmpty() = size != 0
+
+    fun clear() {
+        size = 0
+    }
+
+    fun peekKey(): Float = keys[0]
+
+    fun peekId(): Int = ids[0]
+
+    fun keyAt(index: Int): Float = keys[index]
+
+    fun idAt(index: Int): Int = ids[index]
+
+    fun push(key: Float, id: Int) {
+        if (size == keys.size) {
+            keys = keys.copyOf(size * 2)
+            ids = ids.copyOf(size * 2)
+        }
+        keys[size] = key
+        ids[size] = id
+        siftUp(size++)
+    }
+
+    fun pop() {
+        size--
+        if (size > 0) {
+            keys[0] = keys[size]
+            ids[0] = ids[size]
+            siftDown(0)
+        }
+    }
+
+    fun replaceTop(key: Float, id: Int) {
+        keys[0] = key
+        ids[0] = id
+        siftDown(0)
+    }
+
+    /**
+     * Keeps the [k] best (smallest) keys seen so far. Requires [maxHeap].
+     */
+    fun offer(key: Float, id: Int, k: Int) {
+        if (size < k) {
+            push(key, id)
+        } else if (key < keys[0]) {
+            replaceTop(key, id)
+        }
+    }
+
+    /**
+     * Empties the heap into [outKeys]/[outIds] ordered from smallest to largest key and
+     * returns the number of entries written.
+     */
+    fun drainAscending(outKeys: FloatArray, outIds: IntArray): Int {
+        val n = size
+        if (maxHeap) {
+            for (i in n - 1 downTo 0) {
+                outKeys[i] = keys[0]
+                outIds[i] = ids[0]
+                pop()
+            }
+        } else {
+            for (i in 0 until n) {
+                outKeys[i] = keys[0]
+                outIds[i] = ids[0]
+                pop()
+            }
+        }
+        return n
+    }
+
+    private fun above(a: Int, b: Int): Boolean =
+        if (maxHeap) keys[a] > keys[b] else keys[a] < keys[b]
+
+    private fun siftUp(start: Int) {
+        var child = start
+        while (child > 0) {
+            val parent = (child - 1) ushr 1
+            if (!above(child, parent)) break
+            swap(child, parent)
+            child = parent
+        }
+    }
+
+    private fun siftDown(start: Int) {
+        var parent = start
+        while (true) {
+            val left = 2 * parent + 1
+            if (left >= size) break
+            val right = left + 1
+            val top = if (right < size && above(right, left)) right else left
+            if (!above(top, parent)) break
+            swap(top, parent)
+            parent = top
+        }
+    }
+
+    private fun swap(a: Int, b: Int) {
+        val k = keys[a]
+        keys[a] = keys[b]
+        keys[b] = k
+        val i = ids[a]
+        ids[a] = ids[b]
+        ids[b] = i
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Product-quantized templates scored with asymmetric distance. If [rerank] holds the float
+ * templates in the same row order, the best [rerankDepth] candidates are rescored exactly.
+ */
+class PQMatcher(
+    val quantizer: ProductQuantizer,
+    override val metric: DistanceMetric = DistanceMetric.L2,
+    private val rerank: EmbeddingGallery? = null,
+    var rerankDepth: Int = 64,
+    initialCapacity: Int = 16
+) : FaceMatcher {
+
+    private val codeSize = quantizer.subspaces
+    private var codes = ByteArray(codeSize * initialCapacity.coerceAtLeast(1))
+    private val labels = ArrayList<String>(initialCapacity)
+    private val table = FloatArray(quantizer.tableSize)
+    private val heap = NeighborHeap(64, maxHeap = true)
+    private var keys = FloatArray(64)
+    private var rows = IntArray(64)
+
+    init {
+        require(metric != DistanceMetric.COSINE || quantizer.normalized) {
+            "Cosine matching needs a quantizer trained on normalized vectors"
+        }
+    }
+
+    override val size: Int
+        get() = labels.size
+
+    val bytesPerTemplate: Int
+        get() = codeSize
+
+    @Synchronized
+    fun add(label: String, embedding: FloatArray): Int {
+        val row = labels.size
+        if ((row + 1) * codeSize > codes.size) {
+            codes = codes.copyOf(max((row + 1) * codeSize, codes.size * 2))
+        }
+        quantizer.encode(embedding, codes, row * codeSize)
+        labels.add(label)
+        return row
+    }
+
+    fun labelAt(row: Int): String = labels[row]
+
+    @Synchronized
+    override fun search(probe: FloatArray, k: Int): List<MatchResult> {
+        if (labels.isEmpty() || k <= 0) return emptyList()
+        quantizer.buildDistanceTable(probe, table)
+        val exact = rerank
+        val depth = if (exact != null) max(k, rerankDepth) else k
+        heap.clear()
+        for (row in 0 until labels.size) {
+            heap.offer(quantizer.asymmetricDistance(table, codes, row * codeSize), row, depth)
+        }
+        ensureScratch(heap.size)
+        var n = heap.drainAscending(keys, rows)
+        if (exact != null) {
+            n = rescore(exact, probe, n, k)
+        } else if (metric == DistanceMetric.COSINE) {
+            for (i in 0 until n) keys[i] = 1f - keys[i] / 2f
+        } else {
+            for (i in 0 until n) keys[i] = sqrt(keys[i])
+        }
+        return List(minOf(n, k)) { i -> MatchResult(labels[rows[i]], keys[i]) }
+    }
+
+    private fun rescore(exact: EmbeddingGallery, probe: FloatArray, n: Int, k: Int): Int {
+        val probeNorm = VectorMath.norm(probe)
+        for (i in 0 until n) {
+            val row = rows[i]
+            val offset = exact.offsetOf(row)
+            val distance = if (metric == DistanceMetric.COSINE) {
+                -VectorMath.cosine(probe, 0, probeNorm, exact.data, offset, exact.normAt(row), exact.dims)
+            } else {
+                VectorMath.squaredL2(probe, 0, exact.data, offset, exact.dims)
+            }
+            heap.offer(distance, row, k)
+        }
+        val count = heap.drainAscending(keys, rows)
+        for (i in 0 until count) {
+            keys[i] = if (metric == DistanceMetric.COSINE) -keys[i] else sqrt(keys[i])
+        }
+        return count
+    }
+
+    private fun ensureScratch(n: Int) {
+        if (keys.size < n) {
+            keys = FloatArray(n)
+            rows = IntArray(n)
+        }
+    }
+
+    companion object {
+
+        /**
+         * Trains a codec on [gallery] and encodes every template into a new matcher. Pass
+         * `keepForRerank = true` to retain [gallery] for exact re-ranking.
+         */
+        fun build(
+            gallery: EmbeddingGallery,
+            metric: DistanceMetric = DistanceMetric.L2,
+            subspaces: Int = 64,
+            keepForRerank: Boolean = false
+        ): PQMatcher {
+            val quantizer = ProductQuantizer.train(
+                gallery,
+                subspaces = subspaces,
+                normalized = metric == DistanceMetric.COSINE
+            )
+            val matcher = PQMatcher(
+                quantizer,
+                metric,
+                if (keepForRerank) gallery else null,
+                initialCapacity = gallery.size
+            )
+            val vector = FloatArray(gallery.dims)
+            for (row in 0 until gallery.size) {
+                matcher.add(gallery.labelAt(row), gallery.copyVector(row, vector))
+            }
+            return matcher
+        }
+    }
+
+}
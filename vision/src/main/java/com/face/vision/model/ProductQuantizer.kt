@@ -0,0 +1,203 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import java.util.Random
+
+/**
+ * Product-quantization codec: each of [subspaces] slices is replaced by its nearest centroid.
+ * [codebooks] holds `subspaces * centroids * subDims` floats, one codebook after another.
+ */
+class ProductQuantizer(
+    val dims: Int,
+    val subspaces: Int,
+    val centroids: Int,
+    val normalized: Boolean,
+    private val codebooks: FloatArray
+) {
+
+    val subDims = dims / subspaces
+
+    init {
+        require(dims % subspaces == 0) { "$dims dims cannot be split into $subspaces subspaces" }
+        require(centroids in 1..256) { "At most 256 centroids fit in a byte code" }
+        require(codebooks.size == subspaces * centroids * subDims) { "Codebook size mismatch" }
+    }
+
+    val tableSize: Int
+        get() = subspaces * centroids
+
+    fun encode(vector: FloatArray, out: ByteArray, outOffset: Int) {
+        val source = prepare(vector)
+        for (s in 0 until subspaces) {
+            out[outOffset + s] = nearestCentroid(source, s * subDims, s).toByte()
+        }
+    }
+
+    fun encode(vector: FloatArray): ByteArray = ByteArray(subspaces).also { encode(vector, it, 0) }
+
+    fun decode(codes: ByteArray, offset: Int, out: FloatArray = FloatArray(dims)): FloatArray {
+        for (s in 0 until subspaces) {
+            val code = codes[offset + s].toInt() and 0xFF
+            System.arraycopy(codebooks, (s * centroids + code) * subDims, out, s * subDims, subDims)
+        }
+        return out
+    }
+
+    /**
+     * Fills [table] with the squared distance from each probe slice to every centroid of the
+     * matching codebook. Scoring a code is then [subspaces] table lookups.
+     */
+    fun buildDistanceTable(probe: FloatArray, table: FloatArray) {
+        val source = prepare(probe)
+        for (s in 0 until subspaces) {
+            val probeOffset = s * subDims
+            for (c in 0 until centroids) {
+                table[s * centroids + c] = VectorMath.squaredL2(
+                    source, probeOffset,
+                    codebooks, (s * centroids + c) * subDims,
+                    subDims
+                )
+            }
+        }
+    }
+
+    fun asymmetricDistance(table: FloatArray, codes: ByteArray, offset: Int): Float {
+        var sum = 0f
+        var tableOffset = 0
+        for (s in 0 until subspaces) {
+            sum += table[tableOffset + (codes[offset + s].toInt() and 0xFF)]
+            tableOffset += centroids
+        }
+        return sum
+    }
+
+    fun copyCodebooks(): FloatArray = codebooks.copyOf()
+
+    private fun prepare(vector: FloatArray): FloatArray {
+        require(vector.size == dims) { "Expected $dims dims, got ${vector.size}" }
+        if (!normalized) return vector
+        return vector.copyOf().also { VectorMath.normalize(it) }
+    }
+
+    private fun nearestCentroid(vector: FloatArray, offset: Int, subspace: Int): Int {
+        var best = 0
+        var bestDistance = Float.MAX_VALUE
+        for (c in 0 until centroids) {
+            val d = VectorMath.squaredL2(
+                vector, offset,
+                codebooks, (subspace * centroids + c) * subDims,
+                subDims
+            )
+            if (d < bestDistance) {
+                bestDistance = d
+                best = c
+            }
+        }
+        return best
+    }
+
+    companion object {
+
+        /**
+         * Trains one k-means codebook per subspace on up to [maxSamples] rows of [gallery].
+         * Set [normalized] for cosine matching.
+         */
+        fun train(
+            gallery: EmbeddingGallery,
+            subspaces: Int = 64,
+            centroids: Int = 256,
+            normalized: Boolean = false,
+            iterations: Int = 12,
+            maxSamples: Int = 5000,
+            seed: Long = 42L
+        ): ProductQuantizer {
+            require(!gallery.isEmpty()) { "Cannot train on an empty gallery" }
+            val dims = gallery.dims
+            require(dims % subspaces == 0) { "$dims dims cannot be split into $subspaces subspaces" }
+            val random = Random(seed)
+            val rows = sampleRows(gallery.size, maxSamples, random)
+            val n = rows.size
+            val k = minOf(centroids, 256, n)
+            val subDims = dims / subspaces
+
+            val samples = FloatArray(n * dims)
+            for (i in 0 until n) {
+                System.arraycopy(gallery.data, gallery.offsetOf(rows[i]), samples, i * dims, dims)
+                if (normalized) VectorMath.normalize(samples, i * dims, dims)
+            }
+
+            val codebooks = FloatArray(subspaces * k * subDims)
+            val slice = FloatArray(n * subDims)
+            val assignments = IntArray(n)
+            val sums = FloatArray(k * subDims)
+            val counts = IntArray(k)
+            for (s in 0 until subspaces) {
+                for (i in 0 until n) {
+                    System.arraycopy(samples, i * dims + s * subDims, slice, i * subDims, subDims)
+                }
+                val bookOffset = s * k * subDims
+                System.arraycopy(slice, 0, codebooks, bookOffset, k * subDims)
+                repeat(iterations) {
+                    for (i in 0 until n) {
+                        var best = 0
+                        var bestDistance = Float.MAX_VALUE
+                        for (c in 0 until k) {
+                            val d = VectorMath.squaredL2(
+                                slice, i * subDims,
+                                codebooks, bookOffset + c * subDims,
+                                subDims
+                            )
+                            if (d < bestDistance) {
+                                bestDistance = d
+                                best = c
+                            }
+                        }
+                        assignments[i] = best
+                    }
+                    sums.fill(0f)
+                    counts.fill(0)
+                    for (i in 0 until n) {
+                        val c = assignments[i]
+                        counts[c]++
+                        for (d in 0 until subDims) {
+                            sums[c * subDims + d] += slice[i * subDims + d]
+                        }
+                    }
+                    for (c in 0 until k) {
+                        val target = bookOffset + c * subDims
+                        if (counts[c] == 0) {
+                            System.arraycopy(slice, random.nextInt(n) * subDims, codebooks, target, subDims)
+                        } else {
+                            val inv = 1f / counts[c]
+                            for (d in 0 until subDims) {
+                                codebooks[target + d] = sums[c * subDims + d] * inv
+                            }
+                        }
+                    }
+                }
+            }
+            return ProductQuantizer(dims, subspaces, k, normalized, codebooks)
+        }
+
+        private fun sampleRows(size: Int, maxSamples: Int, random: Random): IntArray {
+            val rows = IntArray(size) { it }
+            if (size <= maxSamples) {
+                for (i in size - 1 downTo 1) {
+                    val j = random.nextInt(i + 1)
+                    val t = rows[i]
+                    rows[i] = rows[j]
+                    rows[j] = t
+                }
+                return rows
+            }
+            for (i in 0 until maxSamples) {
+                val j = i + random.nextInt(size - i)
+                val t = rows[i]
+                rows[i] = rows[j]
+                rows[j] = t
+            }
+            return rows.copyOf(maxSamples)
+        }
+    }
+
+}
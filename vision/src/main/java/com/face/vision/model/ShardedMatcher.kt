@@ -0,0 +1,78 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
+
+/**
+ * [IdentityMatcher] that scans [shards] identity ranges in parallel on [executor] once the
+ * gallery reaches [parallelThreshold] templates.
+ */
+class ShardedMatcher(
+    private val gallery: EmbeddingGallery,
+    private val executor: ExecutorService,
+    override val metric: DistanceMetric = DistanceMetric.L2,
+    aggregation: ScoreAggregation = ScoreAggregation.MEAN,
+    var parallelThreshold: Int = 4096,
+    private val shards: Int = Runtime.getRuntime().availableProcessors(),
+    threshold: Float? = null
+) : FaceMatcher {
+
+    private val serial = IdentityMatcher(gallery, metric, aggregation, threshold)
+    private val shardHeaps = Array(shards.coerceAtLeast(1)) { NeighborHeap(16, maxHeap = true) }
+    private val futures = ArrayList<Future<*>>(shards)
+    private val merged = NeighborHeap(16, maxHeap = true)
+
+    override val size: Int
+        get() = gallery.identityCount
+
+    @Synchronized
+    override fun search(probe: FloatArray, k: Int): List<MatchResult> {
+        val identities = gallery.identityCount
+        if (gallery.size < parallelThreshold || shards <= 1 || identities < shards || k <= 0) {
+            return serial.search(probe, k)
+        }
+        serial.prepare()
+        val probeNorm = VectorMath.norm(probe)
+        val chunk = (identities + shards - 1) / shards
+        futures.clear()
+        for (shard in 1 until shards) {
+            val from = shard * chunk
+            if (from >= identities) break
+            val to = min(identities, from + chunk)
+            val heap = shardHeaps[shard]
+            heap.clear()
+            futures.add(executor.submit { serial.scan(probe, probeNorm, from, to, k, heap) })
+        }
+        merged.clear()
+        serial.scan(probe, probeNorm, 0, min(identities, chunk), k, merged)
+        for (future in futures) {
+            future.get()
+        }
+        for (shard in 1..futures.size) {
+            val heap = shardHeaps[shard]
+            for (i in 0 until heap.size) {
+                merged.offer(heap.keyAt(i), heap.idAt(i), k)
+            }
+        }
+        return serial.collect(merged)
+    }
+
+    companion object {
+
+        /**
+         * Daemon pool for [ShardedMatcher]; the caller scans one shard, so one thread fewer
+         * than the shard count is enough.
+         */
+        fun newExecutor(shards: Int = Runtime.getRuntime().availableProcessors()): ExecutorService {
+            val counter = AtomicInteger()
+            return Executors.newFixedThreadPool((shards - 1).coerceAtLeast(1)) { task ->
+                Thread(task, "face-match-${counter.incrementAndGet()}").apply { isDaemon = true }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Ranks templates by the Hamming distance of their sign bits, then scores the best
+ * [rerankDepth] exactly against [gallery].
+ */
+class SignHashMatcher(
+    private val gallery: EmbeddingGallery,
+    override val metric: DistanceMetric = DistanceMetric.L2,
+    var rerankDepth: Int = 256
+) : FaceMatcher {
+
+    private val words = (gallery.dims + 63) / 64
+    private var codes = LongArray(words * gallery.size.coerceAtLeast(1))
+    private var encodedRows = 0
+    private var encodedVersion = -1
+    private val probeCode = LongArray(words)
+    private val heap = NeighborHeap(64, maxHeap = true)
+    private var keys = FloatArray(64)
+    private var rows = IntArray(64)
+
+    override val size: Int
+        get() = gallery.size
+
+    @Synchronized
+    fun add(label: String, embedding: FloatArray): Int {
+        val current = encodedVersion == gallery.version
+        val row = gallery.add(label, embedding)
+        if (current && row == encodedRows) {
+            ensureCapacity(row + 1)
+            encode(gallery.data, gallery.offsetOf(row), gallery.dims, codes, row * words)
+            encodedRows = row + 1
+            encodedVersion = gallery.version
+        }
+        return row
+    }
+
+    private fun rebuild() {
+        ensureCapacity(gallery.size)
+        for (row in 0 until gallery.size) {
+            encode(gallery.data, gallery.offsetOf(row), gallery.dims, codes, row * words)
+        }
+        encodedRows = gallery.size
+        encodedVersion = gallery.version
+    }
+
+    @Synchronized
+    override fun search(probe: FloatArray, k: Int): List<MatchResult> {
+        if (encodedVersion != gallery.version) rebuild()
+        if (encodedRows == 0 || k <= 0) return emptyList()
+        encode(probe, 0, gallery.dims, probeCode, 0)
+        val depth = max(k, rerankDepth)
+        heap.clear()
+        for (row in 0 until encodedRows) {
+            val base = row * words
+            var hamming = 0
+            for (w in 0 until words) {
+                hamming += java.lang.Long.bitCount(probeCode[w] xor codes[base + w])
+            }
+            heap.offer(hamming.toFloat(), row, depth)
+        }
+        if (keys.size < heap.size) {
+            keys = FloatArray(heap.size)
+            rows = IntArray(heap.size)
+        }
+        val candidates = heap.drainAscending(keys, rows)
+
+        val data = gallery.data
+        val dims = gallery.dims
+        val probeNorm = VectorMath.norm(probe)
+        for (i in 0 until candidates) {
+            val row = rows[i]
+            val offset = gallery.offsetOf(row)
+            val distance = if (metric == DistanceMetric.COSINE) {
+                -VectorMath.cosine(probe, 0, probeNorm, data, offset, gallery.normAt(row), dims)
+            } else {
+                VectorMath.squaredL2(probe, 0, data, offset, dims)
+            }
+            heap.offer(distance, row, k)
+        }
+        val n = heap.drainAscending(keys, rows)
+        return List(n) { i ->
+            val score = if (metric == DistanceMetric.COSINE) -keys[i] else sqrt(keys[i])
+            MatchResult(gallery.labelAt(rows[i]), score)
+        }
+    }
+
+    private fun ensureCapacity(rowCount: Int) {
+        if (rowCount * words > codes.size) {
+            codes = codes.copyOf(max(rowCount * words, codes.size * 2))
+        }
+    }
+
+    companion object {
+
+        /**
+         * Packs the sign of each of [length] floats into [out], least significant bit first.
+         */
+        fun encode(vector: FloatArray, offset: Int, length: Int, out: LongArray, outOffset: Int) {
+            var w = 0
+            var i = 0
+            while (i < length) {
+                var bits = 0L
+                val end = minOf(i + 64, length)
+                for (j in i until end) {
+                    if (vector[offset + j] > 0f) {
+                        bits = bits or (1L shl (j - i))
+                    }
+                }
+                out[outOffset + w++] = bits
+                i = end
+            }
+        }
+    }
+
+}
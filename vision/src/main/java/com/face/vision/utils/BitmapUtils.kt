@@ -5,6 +5,8 @@ import android.graphics.Matrix
 import android.graphics.Rect
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
+import kotlin.math.max
+import kotlin.math.roundToInt
 
 object BitmapUtils {
 
@@ -21,6 +23,41 @@ object BitmapUtils {
     }
 
 
+    /**
+     * Copy of [source] whose longest side is [maxSide], or [source] itself if it is already
+     * that small. Detection runs on the copy; [scaleRect] maps its boxes back.
+     */
+    internal fun downscale(source: Bitmap, maxSide: Int): Bitmap {
+        val longest = max(source.width, source.height)
+        if (longest <= maxSide) return source
+        val scale = maxSide.toFloat() / longest
+        return Bitmap.createScaledBitmap(
+            source,
+            max(1, (source.width * scale).roundToInt()),
+            max(1, (source.height * scale).roundToInt()),
+            true
+        )
+    }
+
+    /**
+     * Maps [rect] found on a copy of [source] [scale] times smaller back to the coordinates
+     * of [source], clamped to its bounds.
+     */
+    internal fun scaleRect(rect: Rect, scale: Float, source: Bitmap): Rect =
+        scaleRect(rect, scale, source.width, source.height)
+
+    internal fun scaleRect(rect: Rect, scale: Float, width: Int, height: Int): Rect =
+        Rect(
+            (rect.left * scale).roundToInt().coerceIn(0, width),
+            (rect.top * scale).roundToInt().coerceIn(0, height),
+            (rect.right * scale).roundToInt().coerceIn(0, width),
+            (rect.bottom * scale).roundToInt().coerceIn(0, height)
+        )
+
+    internal fun scaleOf(source: Bitmap, scaled: Bitmap): Float =
+        max(source.width, source.height).toFloat() / max(scaled.width, scaled.height)
+
+
     internal fun rotateBitmap(source: Bitmap, degrees: Float): Bitmap {
         val matrix = Matrix()
         matrix.postRotate(degrees)
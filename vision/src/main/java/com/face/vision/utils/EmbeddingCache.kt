@@ -0,0 +1,138 @@
+package com.face.vision.utils
+
+import android.graphics.Bitmap
+import com.face.vision.model.ModelInfo
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Enrollment embeddings keyed by pixel hash and model, one file each, trimmed to [maxBytes]
+ * least recently used first. An empty embedding means no face. Call off the main thread.
+ */
+class EmbeddingCache(private val directory: File, private val maxBytes: Long = 16L * 1024 * 1024) {
+
+    private val entries = LinkedHashMap<String, Long>(64, 0.75f, true)
+    private var totalBytes = 0L
+    private var loaded = false
+
+    /**
+     * Hashes the pixels of [image] row by row together with its size and [model]'s identity.
+     */
+    fun keyOf(image: Bitmap, model: ModelInfo): String {
+        val width = image.width
+        val height = image.height
+        val row = IntArray(width)
+        var h = FNV_OFFSET
+        var g = GOLDEN
+        fun mix(v: Int) {
+            h = (h xor (v.toLong() and 0xFFFFFFFFL)) * FNV_PRIME
+            g = java.lang.Long.rotateLeft((g + v) * GOLDEN, 29)
+        }
+        mix(width)
+        mix(height)
+        mix(model.name.hashCode())
+        mix(model.outputDims)
+        for (y in 0 until height) {
+            image.getPixels(row, 0, width, 0, y, width, 1)
+            for (pixel in row) mix(pixel)
+        }
+        return java.lang.Long.toHexString(h) + java.lang.Long.toHexString(g)
+    }
+
+    @Synchronized
+    fun get(key: String): FloatArray? {
+        load()
+        entries[key] ?: return null
+        val file = fileFor(key)
+        return try {
+            val embedding = read(file)
+            file.setLastModified(System.currentTimeMillis())
+            embedding
+        } catch (e: IOException) {
+            remove(key)
+            null
+        }
+    }
+
+    @Synchronized
+    fun put(key: String, embedding: FloatArray) {
+        load()
+        val file = fileFor(key)
+        val buffer = ByteBuffer.allocate(4 + embedding.size * 4).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.putInt(embedding.size)
+        buffer.asFloatBuffer().put(embedding)
+        try {
+            RandomAccessFile(file, "rw").use { raf ->
+                raf.setLength(0)
+                raf.write(buffer.array())
+            }
+        } catch (e: IOException) {
+            file.delete()
+            return
+        }
+        entries.remove(key)?.let { totalBytes -= it }
+        entries[key] = file.length()
+        totalBytes += file.length()
+        trim()
+    }
+
+    @Synchronized
+    fun remove(key: String) {
+        load()
+        entries.remove(key)?.let { totalBytes -= it }
+        fileFor(key).delete()
+    }
+
+    @Synchronized
+    fun clear() {
+        load()
+        for (key in entries.keys.toList()) remove(key)
+    }
+
+    private fun load() {
+        if (loaded) return
+        loaded = true
+        directory.mkdirs()
+        val files = directory.listFiles { file -> file.name.endsWith(SUFFIX) } ?: emptyArray()
+        files.sortBy { it.lastModified() }
+        for (file in files) {
+            entries[file.name.removeSuffix(SUFFIX)] = file.length()
+            totalBytes += file.length()
+        }
+        trim()
+    }
+
+    private fun trim() {
+        val iterator = entries.entries.iterator()
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            val eldest = iterator.next()
+            totalBytes -= eldest.value
+            iterator.remove()
+            fileFor(eldest.key).delete()
+        }
+    }
+
+    private fun fileFor(key: String) = File(directory, key + SUFFIX)
+
+    private fun read(file: File): FloatArray {
+        val bytes = file.readBytes()
+        if (bytes.size < 4) throw IOException("Truncated cache entry")
+        val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+        val dims = buffer.getInt()
+        if (dims < 0 || bytes.size.toLong() != 4 + dims * 4L) throw IOException("Corrupt cache entry")
+        val embedding = FloatArray(dims)
+        buffer.asFloatBuffer().get(embedding)
+        return embedding
+    }
+
+    private companion object {
+        const val SUFFIX = ".emb"
+        const val FNV_OFFSET = -0x340d631b7bdddcdbL
+        const val FNV_PRIME = 0x100000001b3L
+        const val GOLDEN = -0x61c8864680b583ebL
+    }
+
+}
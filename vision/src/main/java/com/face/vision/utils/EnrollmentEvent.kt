@@ -0,0 +1,37 @@
+package com.face.vision.utils
+
+/**
+ * Outcome of one roster photo, emitted by [FileReader.enroll] as soon as it is known.
+ * [index] is the photo's position in the roster; events arrive in completion order.
+ */
+sealed class EnrollmentEvent(val index: Int, val label: String) {
+
+    /**
+     * An event that produced a template for [label].
+     */
+    sealed class Template(index: Int, label: String, val embedding: FloatArray) :
+        EnrollmentEvent(index, label)
+
+    class Embedded(index: Int, label: String, embedding: FloatArray) :
+        Template(index, label, embedding)
+
+    /**
+     * The template came from the [EmbeddingCache]; detection and inference were skipped.
+     */
+    class CacheHit(index: Int, label: String, embedding: FloatArray) :
+        Template(index, label, embedding)
+
+    /**
+     * The photo shows [faceCount] faces; [embedding] belongs to the largest one.
+     */
+    class MultipleFaces(index: Int, label: String, embedding: FloatArray, val faceCount: Int) :
+        Template(index, label, embedding)
+
+    class NoFace(index: Int, label: String) : EnrollmentEvent(index, label)
+
+    /**
+     * The photo could not be decoded or the detector failed on it.
+     */
+    class Failed(index: Int, label: String) : EnrollmentEvent(index, label)
+
+}
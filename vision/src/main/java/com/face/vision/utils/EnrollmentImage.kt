@@ -0,0 +1,124 @@
+package com.face.vision.utils
+
+import android.content.ContentResolver
+import android.content.res.Resources
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Rect
+import android.net.Uri
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * A reference photo that is only decoded when the enrollment pipeline gets to it, so a
+ * roster is a list of cheap handles rather than decoded bitmaps.
+ */
+abstract class EnrollmentImage(val label: String) {
+
+    /**
+     * True if bitmaps from [decode] belong to the pipeline and can be recycled once used.
+     */
+    open val recyclable: Boolean
+        get() = true
+
+    /**
+     * Decodes the photo with its longest side at most [maxSide], or returns null if it cannot
+     * be read.
+     */
+    abstract fun decode(maxSide: Int): Bitmap?
+
+    /**
+     * Decodes the original photo under [box], given in [decoded]'s coordinates, or returns
+     * null if [decoded] is already as sharp.
+     */
+    open fun decodeRegion(decoded: Bitmap, box: Rect, minSide: Int): Bitmap? = null
+
+    private class Decoded(label: String, private val bitmap: Bitmap) : EnrollmentImage(label) {
+        override val recyclable: Boolean
+            get() = false
+
+        override fun decode(maxSide: Int): Bitmap = bitmap
+    }
+
+    private class Streamed(
+        label: String,
+        private val open: () -> InputStream?
+    ) : EnrollmentImage(label) {
+
+        override fun decode(maxSide: Int): Bitmap? = try {
+            val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+            open()?.use { BitmapFactory.decodeStream(it, null, bounds) }
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                null
+            } else {
+                val options = BitmapFactory.Options().apply {
+                    inSampleSize = sampleSize(bounds.outWidth, bounds.outHeight, maxSide)
+                }
+                open()?.use { BitmapFactory.decodeStream(it, null, options) }?.let { sampled ->
+                    val scaled = BitmapUtils.downscale(sampled, maxSide)
+                    if (scaled !== sampled) sampled.recycle()
+                    scaled
+                }
+            }
+        } catch (e: IOException) {
+            null
+        }
+
+        override fun decodeRegion(decoded: Bitmap, box: Rect, minSide: Int): Bitmap? = try {
+            @Suppress("DEPRECATION")
+            val decoder = open()?.use { BitmapRegionDecoder.newInstance(it, false) }
+            try {
+                decoder?.let {
+                    val scale = it.width.toFloat() / decoded.width
+                    val region = BitmapUtils.scaleRect(box, scale, it.width, it.height)
+                    if (region.isEmpty || it.width <= decoded.width) {
+                        null
+                    } else {
+                        val options = BitmapFactory.Options().apply {
+                            inSampleSize = sampleSize(region.width(), region.height(), minSide)
+                        }
+                        it.decodeRegion(region, options)
+                    }
+                }
+            } finally {
+                decoder?.recycle()
+            }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    companion object {
+
+        /**
+         * Wraps an already decoded [bitmap]; the caller keeps ownership of it.
+         */
+        fun of(label: String, bitmap: Bitmap): EnrollmentImage = Decoded(label, bitmap)
+
+        fun fromFile(label: String, file: File): EnrollmentImage =
+            Streamed(label) { FileInputStream(file) }
+
+        fun fromUri(label: String, resolver: ContentResolver, uri: Uri): EnrollmentImage =
+            Streamed(label) { resolver.openInputStream(uri) }
+
+        fun fromResource(label: String, resources: Resources, id: Int): EnrollmentImage =
+            Streamed(label) { resources.openRawResource(id) }
+
+        /**
+         * Largest power of two that keeps the longest side of a [width] x [height] image at
+         * or above [maxSide]; [decode] scales the rest of the way after decoding.
+         */
+        fun sampleSize(width: Int, height: Int, maxSide: Int): Int {
+            val longest = maxOf(width, height)
+            var sample = 1
+            while (longest / (sample * 2) >= maxSide) {
+                sample *= 2
+            }
+            return sample
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.face.vision.utils
+
+import android.graphics.Rect
+import kotlin.math.abs
+import kotlin.math.max
+
+/**
+ * Last embedding and decision per ML Kit tracking id, reused while the face holds still and
+ * for at most [revalidateMillis].
+ */
+class FaceTrackCache(
+    private val revalidateMillis: Long = 2_000L,
+    private val moveThreshold: Float = 0.2f,
+    private val scaleThreshold: Float = 0.15f,
+    private val maxTracks: Int = 8
+) {
+
+    class Entry internal constructor(dims: Int) {
+        val box = Rect()
+        var embedding = FloatArray(dims)
+            internal set
+        var label = ""
+            internal set
+        var recognized = false
+            internal set
+        var embeddedAt = 0L
+            internal set
+    }
+
+    private val entries = LinkedHashMap<Int, Entry>(16, 0.75f, true)
+
+    /**
+     * Returns the entry for [trackingId] if its decision is still valid for [box] at [now],
+     * or null if the face has to be embedded again.
+     */
+    @Synchronized
+    fun lookup(trackingId: Int?, box: Rect, now: Long): Entry? {
+        val entry = entries[trackingId ?: return null] ?: return null
+        if (now - entry.embeddedAt >= revalidateMillis) return null
+        val reference = entry.box
+        val referenceWidth = (reference.right - reference.left).toFloat()
+        val referenceHeight = (reference.bottom - reference.top).toFloat()
+        val size = max(1f, max(referenceWidth, referenceHeight))
+        val moved = max(
+            abs(box.left + box.right - reference.left - reference.right),
+            abs(box.top + box.bottom - reference.top - reference.bottom)
+        ) / 2f / size
+        if (moved > moveThreshold) return null
+        val area = referenceWidth * referenceHeight
+        val boxArea = (box.right - box.left).toFloat() * (box.bottom - box.top)
+        val scale = if (area > 0f) boxArea / area else 0f
+        if (abs(scale - 1f) > scaleThreshold) return null
+        return entry
+    }
+
+    @Synchronized
+    fun store(
+        trackingId: Int?,
+        box: Rect,
+        embedding: FloatArray,
+        label: String,
+        recognized: Boolean,
+        now: Long
+    ) {
+        val id = trackingId ?: return
+        val entry = entries.getOrPut(id) { Entry(embedding.size) }
+        if (entry.embedding.size != embedding.size) entry.embedding = FloatArray(embedding.size)
+        System.arraycopy(embedding, 0, entry.embedding, 0, embedding.size)
+        copyBox(box, entry.box)
+        entry.label = label
+        entry.recognized = recognized
+        entry.embeddedAt = now
+        if (entries.size > maxTracks) {
+            val eldest = entries.keys.iterator()
+            eldest.next()
+            eldest.remove()
+        }
+    }
+
+    /**
+     * Forgets tracks that are no longer in view.
+     */
+    @Synchronized
+    fun retain(trackingIds: Collection<Int>) {
+        entries.keys.retainAll(trackingIds)
+    }
+
+    /**
+     * Drops every decision, e.g. after the gallery or model changed.
+     */
+    @Synchronized
+    fun clear() {
+        entries.clear()
+    }
+
+    // Field copy rather than Rect.set so the math also runs against the mockable android.jar
+    private fun copyBox(from: Rect, into: Rect) {
+        into.left = from.left
+        into.top = from.top
+        into.right = from.right
+        into.bottom = from.bottom
+    }
+
+}
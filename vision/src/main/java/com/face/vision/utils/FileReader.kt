@@ -1,98 +1,284 @@
 package com.face.vision.utils
 
 import android.graphics.Bitmap
-import android.graphics.Rect
 import com.face.vision.model.FaceNetModel
+import com.face.vision.model.Int8Gallery
 import com.google.mlkit.vision.common.InputImage
+import com.google.mlkit.vision.face.Face
 import com.google.mlkit.vision.face.FaceDetection
 import com.google.mlkit.vision.face.FaceDetectorOptions
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.joinAll
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlinx.coroutines.withContext
+import java.util.concurrent.Executor
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
 
-class FileReader(private var faceNetModel: FaceNetModel) {
+/**
+ * Enrolls photos through decode, detection and embedding stages joined by channels of
+ * [stageCapacity]. Embedding runs on one worker and batches whatever is queued.
+ */
+class FileReader(
+    private var faceNetModel: FaceNetModel,
+    private val emitQuantized: Boolean = false,
+    private val embeddingCache: EmbeddingCache? = null,
+    private val parallelism: Int = 2,
+    private val stageCapacity: Int = 4,
+    private val maxDecodeSide: Int = 640,
+    private val detectionSide: Int = 480
+) {
 
     private val realTimeOpts = FaceDetectorOptions.Builder()
         .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
         .build()
     private val detector = FaceDetection.getClient(realTimeOpts)
-    private val mainScope = CoroutineScope(Dispatchers.Main)
-    private var numImagesWithNoFaces = 0
-    private var imageCounter = 0
-    private var numImages = 0
-    private var data = ArrayList<Pair<String, Bitmap>>()
-    private lateinit var callback: ProcessCallback
+    private val mainScope = CoroutineScope(SupervisorJob() + Dispatchers.Main)
 
-    private val imageData = ArrayList<Pair<String, FloatArray>>()
+    class ScanResult(
+        val embeddings: ArrayList<Pair<String, FloatArray>>,
+        val numImagesWithNoFaces: Int,
+        val quantized: Int8Gallery?,
+        val numImagesFailed: Int = 0
+    )
 
-
-    fun run(data: ArrayList<Pair<String, Bitmap>>, callback: ProcessCallback) {
-        numImages = data.size
-        this.data = data
-        this.callback = callback
-        scanImage(data[imageCounter].first, data[imageCounter].second)
+    private class Scan(
+        val index: Int,
+        val image: Bitmap,
+        val owned: Boolean,
+        val key: String?,
+        val input: InputImage? = null,
+        val scale: Float = 1f,
+        val faceCount: Int = 0
+    ) {
+        fun release() {
+            if (owned) image.recycle()
+        }
     }
 
-
     interface ProcessCallback {
         fun onProcessCompleted(data: ArrayList<Pair<String, FloatArray>>, numImagesWithNoFaces: Int)
-    }
 
+        fun onQuantizedTemplates(data: Int8Gallery) {}
+
+        /**
+         * [numImagesFailed] images could not be decoded or the detector failed on them.
+         */
+        fun onImagesFailed(numImagesFailed: Int) {}
+    }
 
-    private fun scanImage(name: String, image: Bitmap) {
+    /**
+     * Callback flavour of [process] for Java-style callers. The returned job is cancelled by
+     * [cancel].
+     */
+    fun run(data: ArrayList<Pair<String, Bitmap>>, callback: ProcessCallback): Job =
         mainScope.launch {
-            val inputImage = InputImage.fromByteArray(
-                BitmapUtils.bitmapToNV21ByteArray(image),
-                image.width,
-                image.height,
-                0,
-                InputImage.IMAGE_FORMAT_NV21
-            )
-            detector.process(inputImage)
-                .addOnSuccessListener { faces ->
-                    if (faces.size != 0) {
-                        mainScope.launch {
-                            val embedding = getEmbedding(image, faces[0].boundingBox)
-                            imageData.add(Pair(name, embedding))
-                            if (imageCounter + 1 != numImages) {
-                                imageCounter += 1
-                                scanImage(data[imageCounter].first, data[imageCounter].second)
-                            } else {
-                                callback.onProcessCompleted(imageData, numImagesWithNoFaces)
-                                reset()
-                            }
-                        }
+            val result = process(data)
+            callback.onProcessCompleted(result.embeddings, result.numImagesWithNoFaces)
+            result.quantized?.let { callback.onQuantizedTemplates(it) }
+            if (result.numImagesFailed > 0) callback.onImagesFailed(result.numImagesFailed)
+        }
+
+    fun cancel() {
+        mainScope.coroutineContext.cancelChildren()
+    }
+
+    /**
+     * Embeds every already decoded image in [data].
+     */
+    suspend fun process(data: List<Pair<String, Bitmap>>): ScanResult =
+        scan(data.map { EnrollmentImage.of(it.first, it.second) })
+
+    /**
+     * Embeds every image in [data] and returns the templates in input order. Images without
+     * a face and images that fail to decode or detect are counted separately.
+     */
+    suspend fun scan(data: List<EnrollmentImage>): ScanResult {
+        val embeddings = arrayOfNulls<FloatArray>(data.size)
+        var noFaces = 0
+        var failed = 0
+        enroll(data).collect { event ->
+            when (event) {
+                is EnrollmentEvent.Template -> embeddings[event.index] = event.embedding
+                is EnrollmentEvent.NoFace -> noFaces++
+                is EnrollmentEvent.Failed -> failed++
+            }
+        }
+        val imageData = ArrayList<Pair<String, FloatArray>>(data.size)
+        for (index in data.indices) {
+            embeddings[index]?.let { imageData.add(Pair(data[index].label, it)) }
+        }
+        val quantized = if (emitQuantized && imageData.isNotEmpty()) {
+            Int8Gallery.from(faceNetModel.model.outputDims, imageData)
+        } else {
+            null
+        }
+        return ScanResult(imageData, noFaces, quantized, failed)
+    }
+
+    /**
+     * Emits one [EnrollmentEvent] per image in [data] as soon as it is resolved. Images are
+     * decoded only when a worker picks them up; cancelling collection stops every stage.
+     */
+    fun enroll(data: List<EnrollmentImage>): Flow<EnrollmentEvent> = channelFlow {
+        val pipeline = this
+        val sources = Channel<Int>(stageCapacity)
+        val toDetect = Channel<Scan>(stageCapacity)
+        val toEmbed = Channel<Scan>(stageCapacity)
+        val workers = parallelism.coerceAtLeast(1)
+
+        launch {
+            for (index in data.indices) sources.send(index)
+            sources.close()
+        }
+        val preparers = List(workers) {
+            launch(Dispatchers.Default) {
+                for (index in sources) {
+                    val source = data[index]
+                    val image = withContext(Dispatchers.IO) { source.decode(maxDecodeSide) }
+                    if (image == null) {
+                        send(EnrollmentEvent.Failed(index, source.label))
+                        continue
+                    }
+                    val cache = embeddingCache
+                    val key = cache?.keyOf(image, faceNetModel.model)
+                    val cached = if (cache != null && key != null) {
+                        withContext(Dispatchers.IO) { cache.get(key) }
                     } else {
-                        numImagesWithNoFaces += 1
-                        if (imageCounter + 1 != numImages) {
-                            imageCounter += 1
-                            scanImage(data[imageCounter].first, data[imageCounter].second)
-                        } else {
-                            callback.onProcessCompleted(imageData, numImagesWithNoFaces)
-                            reset()
-                        }
+                        null
+                    }
+                    if (cached == null) {
+                        val small = BitmapUtils.downscale(image, detectionSide)
+                        val scale = BitmapUtils.scaleOf(image, small)
+                        val input = toInputImage(small)
+                        if (small !== image) small.recycle()
+                        toDetect.send(Scan(index, image, source.recyclable, key, input, scale))
+                        continue
+                    }
+                    if (source.recyclable) image.recycle()
+                    if (cached.isEmpty()) {
+                        send(EnrollmentEvent.NoFace(index, source.label))
+                    } else {
+                        send(EnrollmentEvent.CacheHit(index, source.label, cached))
                     }
                 }
+            }
         }
-    }
+        val detectors = List(workers) {
+            launch(Dispatchers.Default) {
+                for (scan in toDetect) {
+                    val label = data[scan.index].label
+                    val faces = try {
+                        detect(scan.input!!)
+                    } catch (e: CancellationException) {
+                        throw e
+                    } catch (e: Exception) {
+                        scan.release()
+                        send(EnrollmentEvent.Failed(scan.index, label))
+                        continue
+                    }
+                    val largest = faces.maxByOrNull {
+                        it.boundingBox.width() * it.boundingBox.height()
+                    }
+                    val box = largest?.let {
+                        BitmapUtils.scaleRect(it.boundingBox, scan.scale, scan.image)
+                    }
+                    if (box == null || box.isEmpty) {
+                        pipeline.cacheResult(scan.key, FloatArray(0))
+                        scan.release()
+                        send(EnrollmentEvent.NoFace(scan.index, label))
+                    } else {
+                        val crop = withContext(Dispatchers.IO) {
+                            data[scan.index].decodeRegion(scan.image, box, faceNetModel.model.inputDims)
+                        } ?: BitmapUtils.cropRectFromBitmap(scan.image, box)
+                        val owned = if (crop === scan.image) scan.owned else true
+                        if (crop !== scan.image) scan.release()
+                        toEmbed.send(Scan(scan.index, crop, owned, scan.key, faceCount = faces.size))
+                    }
+                }
+            }
+        }
+        launch {
+            preparers.joinAll()
+            toDetect.close()
+            detectors.joinAll()
+            toEmbed.close()
+        }
+        launch(Dispatchers.Default) {
+            val batch = ArrayList<Scan>()
+            val outputs = ArrayList<FloatArray>()
+            for (first in toEmbed) {
+                batch.clear()
+                batch.add(first)
+                while (batch.size < faceNetModel.maxBatchSize) {
+                    batch.add(toEmbed.tryReceive().getOrNull() ?: break)
+                }
+                while (outputs.size < batch.size) outputs.add(FloatArray(faceNetModel.model.outputDims))
+                try {
+                    faceNetModel.getFaceEmbeddings(batch.map { it.image }, outputs)
+                } catch (e: Exception) {
+                    // One bad batch fails its own images; the rest of the scan carries on
+                    for (scan in batch) {
+                        scan.release()
+                        send(EnrollmentEvent.Failed(scan.index, data[scan.index].label))
+                    }
+                    continue
+                }
+                for (i in batch.indices) {
+                    val scan = batch[i]
+                    // Events outlive the batch, so each gets its own copy of the reused output
+                    val embedding = outputs[i].copyOf()
+                    pipeline.cacheResult(scan.key, embedding)
+                    scan.release()
+                    val label = data[scan.index].label
+                    val event = if (scan.faceCount > 1) {
+                        EnrollmentEvent.MultipleFaces(scan.index, label, embedding, scan.faceCount)
+                    } else {
+                        EnrollmentEvent.Embedded(scan.index, label, embedding)
+                    }
+                    send(event)
+                }
+            }
+        }
+    }.buffer(stageCapacity)
+
+    private suspend fun toInputImage(image: Bitmap): InputImage =
+        InputImage.fromByteArray(
+            BitmapUtils.bitmapToNV21ByteArray(image),
+            image.width,
+            image.height,
+            0,
+            InputImage.IMAGE_FORMAT_NV21
+        )
 
-    private suspend fun getEmbedding(image: Bitmap, bbox: Rect): FloatArray =
-        withContext(Dispatchers.Default) {
-            return@withContext faceNetModel.getFaceEmbedding(
-                BitmapUtils.cropRectFromBitmap(
-                    image,
-                    bbox
-                )
-            )
+    private suspend fun detect(input: InputImage): List<Face> =
+        suspendCancellableCoroutine { continuation ->
+            detector.process(input)
+                .addOnSuccessListener(DIRECT) { continuation.resume(it) }
+                .addOnFailureListener(DIRECT) { continuation.resumeWithException(it) }
+                .addOnCanceledListener(DIRECT) { continuation.cancel() }
         }
 
+    private fun CoroutineScope.cacheResult(key: String?, embedding: FloatArray) {
+        val cache = embeddingCache ?: return
+        if (key == null) return
+        launch(Dispatchers.IO) {
+            cache.put(key, embedding)
+        }
+    }
 
-    private fun reset() {
-        imageCounter = 0
-        numImages = 0
-        numImagesWithNoFaces = 0
-        data.clear()
+    private companion object {
+        val DIRECT = Executor { it.run() }
     }
 
-}
\ No newline at end of file
+}
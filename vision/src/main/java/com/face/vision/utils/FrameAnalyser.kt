@@ -1,11 +1,18 @@
 package com.face.vision.utils
 
 import android.annotation.SuppressLint
-import android.graphics.Bitmap
+import android.graphics.ImageFormat
+import android.os.SystemClock
 import androidx.camera.core.ImageAnalysis
 import androidx.camera.core.ImageProxy
+import com.face.vision.model.DistanceMetric
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.FaceMatcher
 import com.face.vision.model.FaceNetModel
+import com.face.vision.model.ModelInfo
 import com.face.vision.model.Prediction
+import com.face.vision.model.ScoreAggregation
+import com.face.vision.model.ShardedMatcher
 import com.google.mlkit.vision.common.InputImage
 import com.google.mlkit.vision.face.Face
 import com.google.mlkit.vision.face.FaceDetection
@@ -14,129 +21,205 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import kotlin.math.pow
-import kotlin.math.sqrt
 
 class FrameAnalyser(
     private var model: FaceNetModel,
+    private val yuvInput: Boolean = false,
+    revalidateMillis: Long = 2_000L,
     private val analiseStateChangeListener: (AnalyseUserImageState) -> Unit
 ) : ImageAnalysis.Analyzer {
 
+    /**
+     * Format to request from [ImageAnalysis], RGBA unless [yuvInput] is set. In YUV mode frames
+     * go to the detector as they are and only the face crop is converted to RGB.
+     */
+    val outputImageFormat: Int
+        get() = if (yuvInput) {
+            ImageAnalysis.OUTPUT_IMAGE_FORMAT_YUV_420_888
+        } else {
+            ImageAnalysis.OUTPUT_IMAGE_FORMAT_RGBA_8888
+        }
+
     private val realTimeOpts = FaceDetectorOptions.Builder()
         .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
+        .enableTracking()
         .build()
     private val detector = FaceDetection.getClient(realTimeOpts)
 
-    private val nameScoreHashmap = HashMap<String, ArrayList<Float>>()
-    private var subject = FloatArray(model.model.outputDims)
+    private val pool = FramePool()
+
+    private var subject = pool.floats(model.model.outputDims)
 
     private var isProcessing = false
 
-    var faceList = ArrayList<Pair<String, FloatArray>>()
+    /**
+     * Longest side of the frame copy handed to the face detector in RGBA mode.
+     */
+    private val detectionSide = 480
+
+    private val rgbaSampler = RgbaPlaneSampler(pool)
+
+    private val yuvSampler = YuvPlaneSampler(pool)
+
+    private var sampler: PlaneSampler = rgbaSampler
+
+    private val metricToBeUsed = DistanceMetric.L2
+
+    private val aggregation = ScoreAggregation.MEAN
+
+    /**
+     * Per-track decisions reused while a tracked face holds still. Cleared whenever the
+     * gallery, matcher or model changes.
+     */
+    val trackCache = FaceTrackCache(revalidateMillis)
+
+    @Volatile
+    var gallery = EmbeddingGallery(model.model.outputDims)
+        set(value) {
+            galleryMatcher = matcherFor(value)
+            field = value
+            trackCache.clear()
+        }
+
+    private val matchExecutor = ShardedMatcher.newExecutor()
+
+    @Volatile
+    private var galleryMatcher = matcherFor(gallery)
+
+    @Volatile
+    var matcher: FaceMatcher? = null
+        set(value) {
+            field = value
+            trackCache.clear()
+        }
 
     private var t1: Long = 0L
 
-    private val metricToBeUsed = "l2"
+    /**
+     * Switches to [model] together with a [gallery] it produced, e.g. once a gallery
+     * migration to a new model has finished.
+     */
+    @Synchronized
+    fun use(model: FaceNetModel, gallery: EmbeddingGallery) {
+        require(gallery.dims == model.model.outputDims) {
+            "Gallery has ${gallery.dims} dims, ${model.model.name} produces ${model.model.outputDims}"
+        }
+        matcher = null
+        this.model = model
+        this.gallery = gallery
+        trackCache.clear()
+    }
 
 
     @SuppressLint("UnsafeOptInUsageError")
     override fun analyze(image: ImageProxy) {
-        if (isProcessing || faceList.size == 0) {
+        if (isProcessing || (matcher?.size ?: gallery.size) == 0) {
             image.close()
             return
         } else {
             isProcessing = true
-            val cameraXImage = image.image!!
-            var frameBitmap = Bitmap.createBitmap(
-                cameraXImage.width,
-                cameraXImage.height,
-                Bitmap.Config.ARGB_8888
-            )
-            frameBitmap.copyPixelsFromBuffer(image.planes[0].buffer)
-            frameBitmap =
-                BitmapUtils.rotateBitmap(frameBitmap, image.imageInfo.rotationDegrees.toFloat())
-
-            val inputImage = InputImage.fromBitmap(frameBitmap, 0)
+            // Planes are read in place until the face is embedded, so the frame stays open.
+            // ML Kit rotates internally and reports upright boxes; only the crop is rotated
+            val rotation = image.imageInfo.rotationDegrees
+            val inputImage: InputImage
+            val scale: Float
+            if (image.format == ImageFormat.YUV_420_888) {
+                val (y, u, v) = image.planes
+                yuvSampler.bind(
+                    y.buffer, y.rowStride, y.pixelStride,
+                    u.buffer, u.rowStride, u.pixelStride,
+                    v.buffer, v.rowStride, v.pixelStride,
+                    image.width,
+                    image.height,
+                    rotation
+                )
+                sampler = yuvSampler
+                inputImage = InputImage.fromMediaImage(image.image!!, rotation)
+                scale = 1f
+            } else {
+                val plane = image.planes[0]
+                rgbaSampler.bind(
+                    plane.buffer,
+                    image.width,
+                    image.height,
+                    plane.rowStride,
+                    plane.pixelStride,
+                    rotation
+                )
+                sampler = rgbaSampler
+                val detectionBitmap = rgbaSampler.detectionBitmap(detectionSide)
+                inputImage = InputImage.fromBitmap(detectionBitmap, rotation)
+                scale = rgbaSampler.sensorWidth.toFloat() / detectionBitmap.width
+            }
             detector.process(inputImage)
                 .addOnSuccessListener { faces ->
                     CoroutineScope(Dispatchers.Default).launch {
-                        runModel(faces, frameBitmap)
+                        try {
+                            runModel(faces, scale)
+                        } finally {
+                            image.close()
+                        }
                     }
                 }
-                .addOnCompleteListener {
+                .addOnFailureListener {
                     image.close()
+                    isProcessing = false
                 }
         }
     }
 
 
-    private suspend fun runModel(faces: List<Face>, cameraFrameBitmap: Bitmap) {
+    private suspend fun runModel(faces: List<Face>, scale: Float) {
         withContext(Dispatchers.Default) {
             t1 = System.currentTimeMillis()
             val predictions = ArrayList<Prediction>()
             if (faces.isEmpty() || faces.size != 1) {
                 analiseStateChangeListener.invoke(AnalyseUserImageState.NoUser)
             } else {
+                val (faceNet, activeMatcher) = synchronized(this@FrameAnalyser) {
+                    model to (matcher ?: galleryMatcher)
+                }
+                trackCache.retain(faces.mapNotNull { it.trackingId })
                 for (face in faces) {
                     try {
-                        val croppedBitmap =
-                            BitmapUtils.cropRectFromBitmap(cameraFrameBitmap, face.boundingBox)
-                        subject = model.getFaceEmbedding(croppedBitmap)
-                        for (i in 0 until faceList.size) {
-                            if (nameScoreHashmap[faceList[i].first] == null) {
-                                val p = ArrayList<Float>()
-                                if (metricToBeUsed == "cosine") {
-                                    p.add(cosineSimilarity(subject, faceList[i].second))
-                                } else {
-                                    p.add(L2Norm(subject, faceList[i].second))
-                                }
-                                nameScoreHashmap[faceList[i].first] = p
-                            } else {
-                                if (metricToBeUsed == "cosine") {
-                                    nameScoreHashmap[faceList[i].first]?.add(
-                                        cosineSimilarity(
-                                            subject,
-                                            faceList[i].second
-                                        )
-                                    )
+                        val box = BitmapUtils.scaleRect(
+                            face.boundingBox,
+                            scale,
+                            sampler.uprightWidth,
+                            sampler.uprightHeight
+                        )
+                        if (box.isEmpty) continue
+                        val now = SystemClock.elapsedRealtime()
+                        val cached = trackCache.lookup(face.trackingId, box, now)
+                        if (cached != null) {
+                            analiseStateChangeListener.invoke(
+                                if (cached.recognized) {
+                                    AnalyseUserImageState.UserRecognized
                                 } else {
-                                    nameScoreHashmap[faceList[i].first]?.add(
-                                        L2Norm(
-                                            subject,
-                                            faceList[i].second
-                                        )
-                                    )
+                                    AnalyseUserImageState.UserUnknown
                                 }
-                            }
-                        }
-
-                        val avgScores = nameScoreHashmap.values.map { scores ->
-                            scores.toFloatArray().average()
+                            )
+                            predictions.add(Prediction(box, cached.label))
+                            continue
                         }
-
-                        val names = nameScoreHashmap.keys.toTypedArray()
-                        nameScoreHashmap.clear()
-
-                        val bestScoreUserName: String = if (metricToBeUsed == "cosine") {
-                            if (avgScores.maxOrNull()!! > model.model.cosineThreshold) {
-                                analiseStateChangeListener.invoke(AnalyseUserImageState.UserRecognized)
-                                names[avgScores.indexOf(avgScores.maxOrNull()!!)]
-                            } else {
-                                analiseStateChangeListener.invoke(AnalyseUserImageState.UserUnknown)
-                                "Unknown"
-                            }
-                        } else {
-                            if (avgScores.minOrNull()!! > model.model.l2Threshold) {
-                                analiseStateChangeListener.invoke(AnalyseUserImageState.UserUnknown)
-                                "Unknown"
-                            } else {
-                                analiseStateChangeListener.invoke(AnalyseUserImageState.UserRecognized)
-                                names[avgScores.indexOf(avgScores.minOrNull()!!)]
-                            }
+                        val tensor = sampler.faceTensor(box, faceNet.model.inputDims)
+                        if (subject.size != faceNet.model.outputDims) {
+                            pool.release(subject)
+                            subject = pool.floats(faceNet.model.outputDims)
                         }
+                        faceNet.getFaceEmbedding(tensor, subject)
+                        val bestScoreUserName = identify(activeMatcher, faceNet.model)
+                        trackCache.store(
+                            face.trackingId,
+                            box,
+                            subject,
+                            bestScoreUserName,
+                            bestScoreUserName != UNKNOWN,
+                            now
+                        )
                         predictions.add(
                             Prediction(
-                                face.boundingBox,
+                                box,
                                 bestScoreUserName
                             )
                         )
@@ -153,15 +236,44 @@ class FrameAnalyser(
         }
     }
 
-    private fun L2Norm(x1: FloatArray, x2: FloatArray): Float {
-        return sqrt(x1.mapIndexed { i, xi -> (xi - x2[i]).pow(2) }.sum())
+    /**
+     * Frees the pooled frame buffers and stops the matching threads once the analyser is done.
+     */
+    fun release() {
+        rgbaSampler.release()
+        yuvSampler.release()
+        pool.clear()
+        matchExecutor.shutdown()
+    }
+
+    /**
+     * Identities beyond the model's threshold are never reported, so a 1:1 check stops
+     * scoring as soon as the only identity cannot pass.
+     */
+    private fun matcherFor(gallery: EmbeddingGallery): ShardedMatcher {
+        val threshold = if (metricToBeUsed == DistanceMetric.L2) {
+            model.model.l2Threshold
+        } else {
+            model.model.cosineThreshold
+        }
+        return ShardedMatcher(
+            gallery, matchExecutor, metricToBeUsed, aggregation, threshold = threshold
+        )
+    }
+
+    private fun identify(matcher: FaceMatcher, modelInfo: ModelInfo): String {
+        val best = matcher.search(subject, 1).firstOrNull()
+        return if (best != null && matcher.metric.accepts(best.score, modelInfo)) {
+            analiseStateChangeListener.invoke(AnalyseUserImageState.UserRecognized)
+            best.label
+        } else {
+            analiseStateChangeListener.invoke(AnalyseUserImageState.UserUnknown)
+            UNKNOWN
+        }
     }
 
-    private fun cosineSimilarity(x1: FloatArray, x2: FloatArray): Float {
-        val mag1 = sqrt(x1.map { it * it }.sum())
-        val mag2 = sqrt(x2.map { it * it }.sum())
-        val dot = x1.mapIndexed { i, xi -> xi * x2[i] }.sum()
-        return dot / (mag1 * mag2)
+    private companion object {
+        const val UNKNOWN = "Unknown"
     }
 
 }
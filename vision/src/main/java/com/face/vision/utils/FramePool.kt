@@ -0,0 +1,113 @@
+package com.face.vision.utils
+
+import android.graphics.Bitmap
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * Size-keyed pool of frame bitmaps, direct buffers and float arrays. Idle objects are capped
+ * at [maxBytes], dropping the least recently released size first; objects handed out are not
+ * counted. Release each object once: a repeated release is ignored while the object is idle,
+ * but one after it was handed out again would give two users the same object.
+ */
+class FramePool(private val maxBytes: Long = 8L * 1024 * 1024) {
+
+    private val free = LinkedHashMap<Any, ArrayDeque<Any>>(16, 0.75f, true)
+    private val pooled = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+    private var pooledBytes = 0L
+
+    private data class BitmapKey(val width: Int, val height: Int)
+    private data class BufferKey(val capacity: Int)
+    private data class FloatsKey(val size: Int)
+
+    @Synchronized
+    fun bitmap(width: Int, height: Int): Bitmap =
+        take(BitmapKey(width, height)) as Bitmap?
+            ?: Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+
+    /**
+     * Direct buffer in native order of exactly [capacity] bytes, cleared.
+     */
+    @Synchronized
+    fun buffer(capacity: Int): ByteBuffer {
+        val buffer = take(BufferKey(capacity)) as ByteBuffer?
+            ?: ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder())
+        buffer.clear()
+        return buffer
+    }
+
+    /**
+     * Float array of [size] elements. Contents are whatever the previous user left.
+     */
+    @Synchronized
+    fun floats(size: Int): FloatArray = take(FloatsKey(size)) as FloatArray? ?: FloatArray(size)
+
+    @Synchronized
+    fun release(bitmap: Bitmap) {
+        if (bitmap.isRecycled || !bitmap.isMutable) return
+        val bytes = bitmap.allocationByteCount.toLong()
+        if (!put(BitmapKey(bitmap.width, bitmap.height), bitmap, bytes)) bitmap.recycle()
+    }
+
+    @Synchronized
+    fun release(buffer: ByteBuffer) {
+        if (!buffer.isDirect) return
+        put(BufferKey(buffer.capacity()), buffer, buffer.capacity().toLong())
+    }
+
+    @Synchronized
+    fun release(array: FloatArray) {
+        put(FloatsKey(array.size), array, array.size * 4L)
+    }
+
+    /**
+     * Drops every pooled object, recycling bitmaps.
+     */
+    @Synchronized
+    fun clear() {
+        for (queue in free.values) {
+            for (item in queue) (item as? Bitmap)?.recycle()
+        }
+        free.clear()
+        pooled.clear()
+        pooledBytes = 0
+    }
+
+    private fun take(key: Any): Any? {
+        val queue = free[key] ?: return null
+        val item = queue.removeLastOrNull() ?: return null
+        pooled.remove(item)
+        pooledBytes -= sizeOf(item)
+        if (queue.isEmpty()) free.remove(key)
+        return item
+    }
+
+    private fun put(key: Any, item: Any, bytes: Long): Boolean {
+        if (item in pooled) return true
+        if (bytes > maxBytes) return false
+        val iterator = free.entries.iterator()
+        while (pooledBytes + bytes > maxBytes && iterator.hasNext()) {
+            val eldest = iterator.next()
+            for (evicted in eldest.value) {
+                pooled.remove(evicted)
+                pooledBytes -= sizeOf(evicted)
+                (evicted as? Bitmap)?.recycle()
+            }
+            iterator.remove()
+        }
+        free.getOrPut(key) { ArrayDeque() }.addLast(item)
+        pooled.add(item)
+        pooledBytes += bytes
+        return true
+    }
+
+    private fun sizeOf(item: Any): Long = when (item) {
+        is Bitmap -> item.allocationByteCount.toLong()
+        is ByteBuffer -> item.capacity().toLong()
+        is FloatArray -> item.size * 4L
+        else -> 0L
+    }
+
+}
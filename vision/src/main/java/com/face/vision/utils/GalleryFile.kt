@@ -0,0 +1,175 @@
+package com.face.vision.utils
+
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.ModelInfo
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+
+/**
+ * Versioned binary gallery, little endian:
+ * ```
+ * int    magic "FRGL"
+ * int    format version
+ * utf8   model name (int length + bytes)
+ * int    output dims
+ * int    row count
+ * utf8   label of every row
+ * pad    to a 4-byte boundary
+ * float  norm of every row
+ * float  row count * dims template values
+ * ```
+ */
+object GalleryFile {
+
+    private const val MAGIC = 0x4652474C
+    private const val VERSION = 1
+    private const val MAX_BODY_BYTES = Int.MAX_VALUE - 8L
+
+    class Header(val version: Int, val modelName: String, val dims: Int, val rows: Int)
+
+    @Throws(IOException::class)
+    fun write(file: File, model: ModelInfo, gallery: EmbeddingGallery) {
+        require(gallery.dims == model.outputDims) {
+            "Gallery has ${gallery.dims} dims, ${model.name} produces ${model.outputDims}"
+        }
+        val rows = gallery.size
+        val labelBytes = Array(rows) { gallery.labelAt(it).toByteArray(Charsets.UTF_8) }
+        val nameBytes = model.name.toByteArray(Charsets.UTF_8)
+        var headerSize = 4 * 5 + nameBytes.size
+        for (label in labelBytes) headerSize += 4 + label.size
+        val padding = (4 - headerSize % 4) % 4
+
+        val header = ByteBuffer.allocate(headerSize + padding).order(ByteOrder.LITTLE_ENDIAN)
+        header.putInt(MAGIC)
+        header.putInt(VERSION)
+        header.putInt(nameBytes.size)
+        header.put(nameBytes)
+        header.putInt(model.outputDims)
+        header.putInt(rows)
+        for (label in labelBytes) {
+            header.putInt(label.size)
+            header.put(label)
+        }
+        header.position(headerSize + padding)
+        header.flip()
+
+        checkSize(rows, gallery.dims)
+        val body = ByteBuffer.allocateDirect(rows * (gallery.dims + 1) * 4)
+            .order(ByteOrder.LITTLE_ENDIAN)
+        body.asFloatBuffer().apply {
+            put(gallery.norms, 0, rows)
+            put(gallery.data, 0, rows * gallery.dims)
+        }
+
+        val tmp = File(file.parentFile, file.name + ".tmp")
+        RandomAccessFile(tmp, "rw").use { raf ->
+            raf.setLength(0)
+            val channel = raf.channel
+            while (header.hasRemaining()) channel.write(header)
+            while (body.hasRemaining()) channel.write(body)
+            channel.force(true)
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            throw IOException("Could not replace $file")
+        }
+    }
+
+    /**
+     * Reads only the header of [file], or returns null if the file does not exist.
+     */
+    @Throws(IOException::class)
+    fun readHeader(file: File): Header? {
+        if (!file.exists()) return null
+        return RandomAccessFile(file, "r").use { raf ->
+            val prefix = readAt(raf.channel, 0, 12)
+            if (prefix.remaining() < 12 || prefix.getInt(0) != MAGIC) return readHeader(prefix)
+            val nameLength = prefix.getInt(8)
+            if (nameLength < 0 || nameLength > raf.length()) throw IOException("Corrupt gallery string")
+            readHeader(readAt(raf.channel, 0, 12 + nameLength + 8))
+        }
+    }
+
+    /**
+     * Returns the gallery in [file], or null if it is missing or belongs to another model. The
+     * mapped floats are copied into heap arrays, since the gallery stays mutable and matching
+     * runs on [FloatArray]s. A malformed or oversized file raises [IOException].
+     */
+    @Throws(IOException::class)
+    fun read(file: File, model: ModelInfo): EmbeddingGallery? {
+        if (!file.exists()) return null
+        RandomAccessFile(file, "r").use { raf ->
+            val buffer = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                .order(ByteOrder.LITTLE_ENDIAN)
+            val header = readHeader(buffer)
+            if (header.modelName != model.name || header.dims != model.outputDims) return null
+            checkSize(header.rows, header.dims)
+            val labels = ArrayList<String>(header.rows)
+            for (i in 0 until header.rows) {
+                labels.add(readString(buffer))
+            }
+            val aligned = buffer.position() + (4 - buffer.position() % 4) % 4
+            if (aligned > buffer.limit()) throw IOException("Truncated gallery")
+            buffer.position(aligned)
+            val floats = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+            val expected = header.rows.toLong() * (header.dims + 1)
+            if (floats.remaining() < expected) {
+                throw IOException("Truncated gallery: ${floats.remaining()} of $expected floats")
+            }
+            val norms = FloatArray(header.rows)
+            val data = FloatArray(header.rows * header.dims)
+            floats.get(norms)
+            floats.get(data)
+            return EmbeddingGallery.wrap(header.dims, labels, data, norms)
+        }
+    }
+
+    private fun checkSize(rows: Int, dims: Int) {
+        if (rows.toLong() * (dims + 1) * 4 > MAX_BODY_BYTES) {
+            throw IOException("Gallery of $rows x $dims floats is too large")
+        }
+    }
+
+    /**
+     * Up to [size] bytes of [channel] from [position]; fewer if the file ends first.
+     */
+    private fun readAt(channel: FileChannel, position: Long, size: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) break
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    private fun readHeader(buffer: ByteBuffer): Header {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+            throw IOException("Not a gallery file")
+        }
+        val version = readInt(buffer)
+        if (version != VERSION) throw IOException("Unsupported gallery version $version")
+        val name = readString(buffer)
+        val dims = readInt(buffer)
+        val rows = readInt(buffer)
+        if (dims <= 0 || rows < 0) throw IOException("Corrupt gallery header")
+        return Header(version, name, dims, rows)
+    }
+
+    private fun readInt(buffer: ByteBuffer): Int {
+        if (buffer.remaining() < 4) throw IOException("Truncated gallery")
+        return buffer.getInt()
+    }
+
+    private fun readString(buffer: ByteBuffer): String {
+        val length = readInt(buffer)
+        if (length < 0 || length > buffer.remaining()) throw IOException("Corrupt gallery string")
+        val bytes = ByteArray(length)
+        buffer.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+}
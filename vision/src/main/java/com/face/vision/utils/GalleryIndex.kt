@@ -0,0 +1,59 @@
+package com.face.vision.utils
+
+import com.face.vision.model.DistanceMetric
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.HnswIndex
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+
+/**
+ * Keeps an [HnswIndex] over the gallery in [file], so a restart loads the graph instead of
+ * rebuilding it. Galleries below [minTemplates] are scanned linearly and get no index.
+ */
+class GalleryIndex(
+    private val file: File,
+    private val metric: DistanceMetric = DistanceMetric.L2,
+    private val minTemplates: Int = 10_000
+) {
+
+    private val mutex = Mutex()
+    private var index: HnswIndex? = null
+
+    /**
+     * Brings the index in line with [gallery] off the main thread and saves it if it changed.
+     * Returns null while the gallery is too small to need one.
+     */
+    suspend fun update(gallery: EmbeddingGallery): HnswIndex? = mutex.withLock {
+        if (gallery.size < minTemplates) return@withLock null
+        withContext(Dispatchers.Default) {
+            val current = index?.takeIf { it.dims == gallery.dims } ?: load(gallery.dims)
+            val changed = current == null || current.sync(gallery)
+            val synced = current ?: HnswIndex.from(gallery, metric)
+            index = synced
+            if (changed) {
+                withContext(Dispatchers.IO) {
+                    try {
+                        synced.write(file)
+                    } catch (e: IOException) {
+                        // Rebuilt from the gallery on the next start
+                    }
+                }
+            }
+            synced
+        }
+    }
+
+    private suspend fun load(dims: Int): HnswIndex? = withContext(Dispatchers.IO) {
+        if (!file.exists()) return@withContext null
+        try {
+            HnswIndex.read(file).takeIf { it.dims == dims && it.metric == metric }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+}
@@ -0,0 +1,303 @@
+package com.face.vision.utils
+
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.ModelInfo
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/**
+ * Append-only log of roster changes on top of a [GalleryFile] snapshot. Changes are queued,
+ * written on [scope], published through [onGalleryChanged] at most every [publishEvery] ms
+ * and folded into a new snapshot every [compactEvery] ms.
+ */
+class GalleryJournal(
+    private val directory: File,
+    private val model: ModelInfo,
+    private val scope: CoroutineScope,
+    private val compactEvery: Long = 60_000L,
+    private val compactThreshold: Int = 64,
+    private val publishEvery: Long = 250L,
+    private val onGalleryChanged: (EmbeddingGallery) -> Unit
+) {
+
+    private class Record(val type: Byte, val label: String, val embedding: FloatArray?)
+
+    // A record handed to the writer just as its scope is cancelled ends up here, not lost
+    @Volatile
+    private var undelivered: Record? = null
+    private val pending = Channel<Record>(Channel.UNLIMITED) { undelivered = it }
+    private val changed = Channel<Unit>(Channel.CONFLATED)
+    private val mutex = Mutex()
+    private val journalFile = File(directory, JOURNAL)
+    private var journal: FileChannel? = null
+    private var gallery = EmbeddingGallery(model.outputDims)
+    private var sequence = 0L
+    private var recordsSinceSnapshot = 0
+    private var jobs = emptyList<Job>()
+
+    /**
+     * Loads the newest snapshot, replays the journal on top of it and starts the background
+     * writer and compactor. Returns the recovered gallery.
+     */
+    suspend fun open(): EmbeddingGallery = withContext(Dispatchers.IO) {
+        mutex.withLock {
+            try {
+                load()
+            } catch (e: IOException) {
+                pending.close(e)
+                throw e
+            }
+            jobs = listOf(
+                scope.launch(Dispatchers.IO, CoroutineStart.UNDISPATCHED) { writeLoop() },
+                scope.launch(Dispatchers.IO) { compactLoop() },
+                scope.launch(Dispatchers.IO) { publishLoop() }
+            )
+            gallery.copy()
+        }
+    }
+
+    /**
+     * Queues adding [embedding] as another template of [label]. Returns false once the journal
+     * is closed or failed to open; the record is then dropped.
+     */
+    fun add(label: String, embedding: FloatArray): Boolean =
+        pending.trySend(Record(ADD, label, embedding.copyOf())).isSuccess
+
+    fun update(label: String, embedding: FloatArray): Boolean =
+        pending.trySend(Record(UPDATE, label, embedding.copyOf())).isSuccess
+
+    fun delete(label: String): Boolean =
+        pending.trySend(Record(DELETE, label, null)).isSuccess
+
+    /**
+     * Writes the current gallery, including records still queued, as a snapshot and
+     * truncates the journal.
+     */
+    suspend fun compact() = withContext(Dispatchers.IO) {
+        mutex.withLock {
+            val channel = journal ?: return@withContext
+            if (drainLocked(channel, pending.tryReceive().getOrNull())) changed.trySend(Unit)
+            compactLocked()
+        }
+    }
+
+    /**
+     * Stops accepting records. The writer appends what is already queued and then closes the
+     * file; nothing is closed underneath it.
+     */
+    fun close() {
+        pending.close()
+        jobs.getOrNull(1)?.cancel()
+    }
+
+    private fun load() {
+        directory.mkdirs()
+        val snapshot = latestSnapshot()
+        sequence = snapshot?.let { sequenceOf(it) } ?: 0L
+        gallery = if (snapshot != null) {
+            GalleryFile.read(snapshot, model) ?: throw IOException(
+                "Snapshot was written by ${GalleryFile.readHeader(snapshot)?.modelName}, " +
+                        "not ${model.name}"
+            )
+        } else {
+            EmbeddingGallery(model.outputDims)
+        }
+        val validLength = replay()
+        val raf = RandomAccessFile(journalFile, "rw")
+        raf.setLength(validLength)
+        journal = raf.channel.also { it.position(validLength) }
+    }
+
+    private suspend fun writeLoop() {
+        var held: Record? = null
+        try {
+            for (first in pending) {
+                held = first
+                mutex.withLock {
+                    val channel = journal ?: return
+                    held = null
+                    drainLocked(channel, first)
+                }
+                changed.trySend(Unit)
+            }
+        } finally {
+            withContext(NonCancellable) {
+                mutex.withLock {
+                    val channel = journal
+                    journal = null
+                    channel?.use {
+                        drainLocked(it, held ?: undelivered ?: pending.tryReceive().getOrNull())
+                    }
+                }
+            }
+            changed.trySend(Unit)
+            changed.close()
+        }
+    }
+
+    /**
+     * Copies the gallery for [onGalleryChanged] once per burst of changes, so a stream of
+     * single records does not copy the whole gallery for each of them.
+     */
+    private suspend fun publishLoop() {
+        for (signal in changed) {
+            onGalleryChanged(mutex.withLock { gallery.copy() })
+            delay(publishEvery)
+        }
+    }
+
+    /**
+     * Appends and applies [first] and every record queued behind it. Returns false if there
+     * was nothing to write.
+     */
+    private fun drainLocked(channel: FileChannel, first: Record?): Boolean {
+        var record = first ?: return false
+        while (true) {
+            append(channel, record)
+            apply(record)
+            record = pending.tryReceive().getOrNull() ?: break
+        }
+        channel.force(false)
+        return true
+    }
+
+    private suspend fun compactLoop() {
+        while (scope.isActive) {
+            delay(compactEvery)
+            mutex.withLock {
+                if (recordsSinceSnapshot >= compactThreshold) compactLocked()
+            }
+        }
+    }
+
+    private fun compactLocked() {
+        val channel = journal ?: return
+        val previous = directory.listFiles { file -> isSnapshot(file) } ?: emptyArray()
+        GalleryFile.write(File(directory, SNAPSHOT_PREFIX + sequence + SNAPSHOT_SUFFIX), model, gallery)
+        channel.truncate(0)
+        channel.position(0)
+        channel.force(true)
+        recordsSinceSnapshot = 0
+        for (file in previous) {
+            if (sequenceOf(file) < sequence) file.delete()
+        }
+    }
+
+    private fun append(channel: FileChannel, record: Record) {
+        val label = record.label.toByteArray(Charsets.UTF_8)
+        val vector = record.embedding
+        val payload = 8 + 1 + 4 + label.size + 4 + (vector?.size ?: 0) * 4
+        val buffer = ByteBuffer.allocate(4 + payload + 4).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.putInt(payload)
+        buffer.putLong(++sequence)
+        buffer.put(record.type)
+        buffer.putInt(label.size)
+        buffer.put(label)
+        buffer.putInt(vector?.size ?: 0)
+        vector?.forEach { buffer.putFloat(it) }
+        val crc = CRC32()
+        crc.update(buffer.array(), 4, payload)
+        buffer.putInt(crc.value.toInt())
+        buffer.flip()
+        while (buffer.hasRemaining()) channel.write(buffer)
+        recordsSinceSnapshot++
+    }
+
+    private fun apply(record: Record) {
+        when (record.type) {
+            ADD -> gallery.add(record.label, record.embedding!!)
+            UPDATE -> {
+                gallery.removeIdentity(record.label)
+                gallery.add(record.label, record.embedding!!)
+            }
+            DELETE -> gallery.removeIdentity(record.label)
+        }
+    }
+
+    /**
+     * Applies journal records newer than the loaded snapshot and returns the length of the
+     * valid prefix; a torn or corrupt tail from a crash is dropped.
+     */
+    private fun replay(): Long {
+        if (!journalFile.exists()) return 0L
+        val bytes = journalFile.readBytes()
+        val buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+        val crc = CRC32()
+        while (buffer.remaining() >= 4) {
+            val start = buffer.position()
+            val payload = buffer.getInt()
+            if (payload < 17 || payload + 4 > buffer.remaining()) return start.toLong()
+            crc.reset()
+            crc.update(bytes, start + 4, payload)
+            buffer.position(start + 4 + payload)
+            if (buffer.getInt() != crc.value.toInt()) return start.toLong()
+            buffer.position(start + 4)
+            val seq = buffer.getLong()
+            val type = buffer.get()
+            val labelBytes = ByteArray(buffer.getInt().coerceIn(0, payload))
+            buffer.get(labelBytes)
+            val dims = buffer.getInt()
+            val embedding = if (dims > 0) FloatArray(dims) { buffer.getFloat() } else null
+            buffer.getInt()
+            if (seq <= sequence) continue
+            if (embedding != null && embedding.size != model.outputDims) {
+                throw IOException("Journal record has $dims dims, expected ${model.outputDims}")
+            }
+            sequence = seq
+            apply(Record(type, String(labelBytes, Charsets.UTF_8), embedding))
+            recordsSinceSnapshot++
+        }
+        return buffer.position().toLong()
+    }
+
+    private fun latestSnapshot(): File? =
+        directory.listFiles { file -> isSnapshot(file) }?.maxByOrNull { sequenceOf(it) }
+
+    private fun isSnapshot(file: File) =
+        file.name.startsWith(SNAPSHOT_PREFIX) && file.name.endsWith(SNAPSHOT_SUFFIX)
+
+    private fun sequenceOf(file: File): Long =
+        file.name.removePrefix(SNAPSHOT_PREFIX).removeSuffix(SNAPSHOT_SUFFIX).toLongOrNull() ?: -1L
+
+    companion object {
+
+        /**
+         * Directory under [root] holding the journal of [model]. Galleries of different models
+         * never share a directory, so switching models can never mix incompatible embeddings.
+         */
+        fun directoryFor(root: File, model: ModelInfo): File =
+            File(root, model.name.replace(Regex("[^A-Za-z0-9]+"), "_") + "-" + model.outputDims)
+
+        /**
+         * True if [directory] holds a snapshot or journal records.
+         */
+        fun hasData(directory: File): Boolean =
+            File(directory, JOURNAL).length() > 0 ||
+                    directory.listFiles()?.any { it.name.startsWith(SNAPSHOT_PREFIX) } == true
+
+        private const val ADD: Byte = 1
+        private const val UPDATE: Byte = 2
+        private const val DELETE: Byte = 3
+        private const val JOURNAL = "gallery.journal"
+        private const val SNAPSHOT_PREFIX = "snapshot-"
+        private const val SNAPSHOT_SUFFIX = ".bin"
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.face.vision.utils
+
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.ModelInfo
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.File
+
+/**
+ * Re-embeds a gallery enrolled with another model, [batchSize] identities at a time, into
+ * [targetJournal] with [embed], e.g. a [FileReader] for the target model. The stale gallery
+ * is never touched.
+ */
+class GalleryMigration(
+    private val targetDims: Int,
+    private val targetJournal: GalleryJournal,
+    private val sourceImages: suspend (label: String) -> List<EnrollmentImage>,
+    private val embed: suspend (List<EnrollmentImage>) -> List<Pair<String, FloatArray>>,
+    private val batchSize: Int = 16
+) {
+
+    class Stale(val model: ModelInfo, val directory: File)
+
+    /**
+     * The re-embedded [gallery] and the labels of [failed] identities, which had no source
+     * photo with a usable face and exist only in the stale gallery.
+     */
+    class Result(val gallery: EmbeddingGallery, val failed: List<String>)
+
+    /**
+     * Embeds every identity of [stale] that is not already in [migrated].
+     */
+    suspend fun migrate(
+        stale: EmbeddingGallery,
+        migrated: EmbeddingGallery = EmbeddingGallery(targetDims),
+        onProgress: (done: Int, total: Int) -> Unit = { _, _ -> }
+    ): Result {
+        require(migrated.dims == targetDims) {
+            "Migrated gallery has ${migrated.dims} dims, the target model produces $targetDims"
+        }
+        val labels = (0 until stale.identityCount).map { stale.identityLabel(it) }
+        var done = 0
+        for (chunk in labels.chunked(batchSize.coerceAtLeast(1))) {
+            val batch = ArrayList<EnrollmentImage>()
+            for (label in chunk) {
+                if (migrated.identityOf(label) >= 0) continue
+                batch.addAll(sourceImages(label))
+            }
+            if (batch.isNotEmpty()) {
+                for ((label, embedding) in embed(batch)) {
+                    migrated.add(label, embedding)
+                    targetJournal.add(label, embedding)
+                }
+            }
+            done += chunk.size
+            onProgress(done, labels.size)
+        }
+        return Result(migrated, labels.filter { migrated.identityOf(it) < 0 })
+    }
+
+    companion object {
+
+        /**
+         * Finds a non-empty gallery under [root] enrolled with a model other than [current],
+         * or null if galleries for [current] are the only ones present.
+         */
+        suspend fun findStale(root: File, current: ModelInfo): Stale? = withContext(Dispatchers.IO) {
+            for (model in ModelInfo.ALL) {
+                if (model == current) continue
+                val directory = GalleryJournal.directoryFor(root, model)
+                if (GalleryJournal.hasData(directory)) return@withContext Stale(model, directory)
+            }
+            null
+        }
+
+        /**
+         * Deletes [stale] once [result] holds every identity of it. Returns false and keeps
+         * it, so the next launch can retry, if any identity failed to migrate.
+         */
+        suspend fun retire(stale: Stale, result: Result): Boolean = withContext(Dispatchers.IO) {
+            result.failed.isEmpty() && stale.directory.deleteRecursively()
+        }
+    }
+
+}
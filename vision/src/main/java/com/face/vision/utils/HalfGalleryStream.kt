@@ -0,0 +1,241 @@
+package com.face.vision.utils
+
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.ModelInfo
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.CheckedOutputStream
+
+/**
+ * Float16 roster interchange format, half the size of [GalleryFile], little endian:
+ * ```
+ * int    magic "FRGH"
+ * int    format version
+ * utf8   model name (int length + bytes)
+ * int    output dims
+ * int    row count
+ * int    CRC32 of the header
+ * block  up to BLOCK_ROWS rows, then the int CRC32 of those rows
+ * row    label (int length + utf8 bytes), then dims half-precision values
+ * ```
+ */
+object HalfGalleryStream {
+
+    private const val MAGIC = 0x46524748
+    private const val VERSION = 2
+
+    /**
+     * Rows per checksummed block, so a reader holds one block rather than the whole roster.
+     */
+    internal const val BLOCK_ROWS = 256
+
+    @Throws(IOException::class)
+    fun write(output: OutputStream, model: ModelInfo, gallery: EmbeddingGallery) {
+        require(gallery.dims == model.outputDims) {
+            "Gallery has ${gallery.dims} dims, ${model.name} produces ${model.outputDims}"
+        }
+        val dims = gallery.dims
+        val buffered = output.buffered()
+        val checked = CheckedOutputStream(buffered, CRC32())
+        val nameBytes = model.name.toByteArray(Charsets.UTF_8)
+        val header = ByteBuffer.allocate(4 * 5 + nameBytes.size).order(ByteOrder.LITTLE_ENDIAN)
+        header.putInt(MAGIC)
+        header.putInt(VERSION)
+        header.putInt(nameBytes.size)
+        header.put(nameBytes)
+        header.putInt(dims)
+        header.putInt(gallery.size)
+        checked.write(header.array())
+        writeInt(buffered, checked.checksum.value.toInt())
+
+        val row = ByteBuffer.allocate(dims * 2).order(ByteOrder.LITTLE_ENDIAN)
+        val data = gallery.data
+        for (r in 0 until gallery.size) {
+            if (r % BLOCK_ROWS == 0) checked.checksum.reset()
+            val label = gallery.labelAt(r).toByteArray(Charsets.UTF_8)
+            writeInt(checked, label.size)
+            checked.write(label)
+            row.clear()
+            val offset = gallery.offsetOf(r)
+            for (i in 0 until dims) {
+                row.putShort(toHalf(data[offset + i]))
+            }
+            checked.write(row.array())
+            if (r % BLOCK_ROWS == BLOCK_ROWS - 1 || r == gallery.size - 1) {
+                writeInt(buffered, checked.checksum.value.toInt())
+            }
+        }
+        buffered.flush()
+    }
+
+    /**
+     * Hands each row to [onRow] in a reused array once the CRC of its block checks out.
+     * Returns false if the stream belongs to another model. On an [IOException] the blocks
+     * before the damaged one have already been delivered.
+     */
+    @Throws(IOException::class)
+    fun read(
+        input: InputStream,
+        model: ModelInfo,
+        onHeader: (rows: Int) -> Unit = {},
+        onRow: (label: String, embedding: FloatArray) -> Unit
+    ): Boolean {
+        val buffered = input.buffered()
+        val checked = CheckedInputStream(buffered, CRC32())
+        if (readInt(checked) != MAGIC) throw IOException("Not a half-precision gallery")
+        val version = readInt(checked)
+        if (version != VERSION) throw IOException("Unsupported gallery version $version")
+        val name = readString(checked)
+        val dims = readInt(checked)
+        val rows = readInt(checked)
+        if (readInt(buffered) != checked.checksum.value.toInt()) {
+            throw IOException("Gallery header checksum mismatch")
+        }
+        if (dims <= 0 || rows < 0) throw IOException("Corrupt gallery header")
+        if (name != model.name || dims != model.outputDims) return false
+        onHeader(rows)
+
+        val rowBytes = dims * 2
+        val blockRows = rows.coerceAtMost(BLOCK_ROWS)
+        val labels = arrayOfNulls<String>(blockRows)
+        val bytes = ByteArray(blockRows * rowBytes)
+        val halves = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+        val embedding = FloatArray(dims)
+        var start = 0
+        while (start < rows) {
+            val count = (rows - start).coerceAtMost(BLOCK_ROWS)
+            checked.checksum.reset()
+            for (r in 0 until count) {
+                labels[r] = readString(checked)
+                readFully(checked, bytes, r * rowBytes, rowBytes)
+            }
+            if (readInt(buffered) != checked.checksum.value.toInt()) {
+                throw IOException("Gallery checksum mismatch in rows $start until ${start + count}")
+            }
+            for (r in 0 until count) {
+                val offset = r * dims
+                for (i in 0 until dims) {
+                    embedding[i] = toFloat(halves.get(offset + i))
+                }
+                onRow(labels[r]!!, embedding)
+            }
+            start += count
+        }
+        return true
+    }
+
+    /**
+     * Reads [input] straight into a packed gallery, or returns null if it belongs to
+     * another model. Nothing is returned from a damaged stream.
+     */
+    @Throws(IOException::class)
+    fun read(input: InputStream, model: ModelInfo): EmbeddingGallery? {
+        var gallery = EmbeddingGallery(model.outputDims)
+        val matched = read(
+            input,
+            model,
+            onHeader = { rows ->
+                gallery = EmbeddingGallery(model.outputDims, rows.coerceAtMost(MAX_PRESIZED_ROWS))
+            }
+        ) { label, embedding ->
+            gallery.add(label, embedding)
+        }
+        return if (matched) gallery else null
+    }
+
+    /**
+     * Rounds [value] to the nearest half-precision value, ties to even.
+     */
+    fun toHalf(value: Float): Short {
+        val bits = java.lang.Float.floatToRawIntBits(value)
+        val sign = (bits ushr 16) and 0x8000
+        val exponent = (bits ushr 23) and 0xFF
+        val mantissa = bits and 0x7FFFFF
+        if (exponent == 0xFF) {
+            return (sign or 0x7C00 or (if (mantissa != 0) 0x200 else 0)).toShort()
+        }
+        val e = exponent - 127 + 15
+        if (e >= 0x1F) return (sign or 0x7C00).toShort()
+        if (e <= 0) {
+            if (e < -10) return sign.toShort()
+            val m = mantissa or 0x800000
+            val shift = 14 - e
+            var half = m ushr shift
+            val rest = m and ((1 shl shift) - 1)
+            val halfway = 1 shl (shift - 1)
+            if (rest > halfway || (rest == halfway && (half and 1) != 0)) half++
+            return (sign or half).toShort()
+        }
+        // A carry out of the mantissa correctly bumps the exponent, up to infinity
+        var half = (e shl 10) or (mantissa ushr 13)
+        val rest = mantissa and 0x1FFF
+        if (rest > 0x1000 || (rest == 0x1000 && (half and 1) != 0)) half++
+        return (sign or half).toShort()
+    }
+
+    fun toFloat(half: Short): Float {
+        val h = half.toInt() and 0xFFFF
+        val sign = (h and 0x8000) shl 16
+        val exponent = (h ushr 10) and 0x1F
+        val mantissa = h and 0x3FF
+        val bits = when {
+            exponent == 0x1F -> sign or 0x7F800000 or (mantissa shl 13)
+            exponent != 0 -> sign or ((exponent + 112) shl 23) or (mantissa shl 13)
+            mantissa == 0 -> sign
+            else -> {
+                var e = 113
+                var m = mantissa
+                while (m and 0x400 == 0) {
+                    m = m shl 1
+                    e--
+                }
+                sign or (e shl 23) or ((m and 0x3FF) shl 13)
+            }
+        }
+        return java.lang.Float.intBitsToFloat(bits)
+    }
+
+    private fun writeInt(output: OutputStream, value: Int) {
+        output.write(value and 0xFF)
+        output.write((value ushr 8) and 0xFF)
+        output.write((value ushr 16) and 0xFF)
+        output.write((value ushr 24) and 0xFF)
+    }
+
+    private fun readInt(input: InputStream): Int {
+        var value = 0
+        for (shift in 0 until 32 step 8) {
+            val b = input.read()
+            if (b < 0) throw EOFException("Truncated gallery")
+            value = value or (b shl shift)
+        }
+        return value
+    }
+
+    private fun readString(input: InputStream): String {
+        val length = readInt(input)
+        if (length < 0 || length > MAX_STRING) throw IOException("Corrupt gallery string")
+        val bytes = ByteArray(length)
+        readFully(input, bytes, 0, length)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun readFully(input: InputStream, bytes: ByteArray, offset: Int, length: Int) {
+        var read = 0
+        while (read < length) {
+            val n = input.read(bytes, offset + read, length - read)
+            if (n < 0) throw EOFException("Truncated gallery")
+            read += n
+        }
+    }
+
+    private const val MAX_STRING = 64 * 1024
+    private const val MAX_PRESIZED_ROWS = 1 shl 16
+
+}
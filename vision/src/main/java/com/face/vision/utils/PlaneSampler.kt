@@ -0,0 +1,136 @@
+package com.face.vision.utils
+
+import android.graphics.Rect
+import java.nio.ByteBuffer
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Builds model input tensors straight from camera planes, rotating and converting only the
+ * face crop. Not thread safe.
+ */
+abstract class PlaneSampler(protected val pool: FramePool) {
+
+    protected var width = 0
+        private set
+    protected var height = 0
+        private set
+    private var rotation = 0
+
+    private var tensor: ByteBuffer? = null
+    private val rgb = FloatArray(3)
+
+    // Sensor position of the last mapped upright point
+    private var sx = 0f
+    private var sy = 0f
+
+    val sensorWidth: Int
+        get() = width
+
+    var uprightWidth = 0
+        private set
+
+    var uprightHeight = 0
+        private set
+
+    protected fun bindGeometry(width: Int, height: Int, rotationDegrees: Int) {
+        require(rotationDegrees % 90 == 0) { "Unsupported rotation $rotationDegrees" }
+        this.width = width
+        this.height = height
+        rotation = ((rotationDegrees % 360) + 360) % 360
+        val swap = rotation == 90 || rotation == 270
+        uprightWidth = if (swap) height else width
+        uprightHeight = if (swap) width else height
+    }
+
+    /**
+     * Writes the RGB value, 0 to 255 per channel, at sensor position ([fx], [fy]) into [rgb].
+     * The position is already clamped to the frame.
+     */
+    protected abstract fun sample(fx: Float, fy: Float, rgb: FloatArray)
+
+    /**
+     * [crop] of the upright frame as a standardized [size] x [size] RGB tensor. Overwritten
+     * by the next call.
+     */
+    fun faceTensor(crop: Rect, size: Int): ByteBuffer {
+        var out = tensor
+        if (out == null || out.capacity() != size * size * 3 * 4) {
+            out?.let { pool.release(it) }
+            out = pool.buffer(size * size * 3 * 4)
+            tensor = out
+        }
+        val values: ByteBuffer = out
+        val stepX = (crop.right - crop.left).toFloat() / size
+        val stepY = (crop.bottom - crop.top).toFloat() / size
+        val maxX = (width - 1).toFloat()
+        val maxY = (height - 1).toFloat()
+        var sum = 0.0
+        var sumSquares = 0.0
+        var index = 0
+        for (y in 0 until size) {
+            for (x in 0 until size) {
+                toSensor(
+                    crop.left + (x + 0.5f) * stepX - 0.5f,
+                    crop.top + (y + 0.5f) * stepY - 0.5f
+                )
+                sample(sx.coerceIn(0f, maxX), sy.coerceIn(0f, maxY), rgb)
+                for (c in 0 until 3) {
+                    val v = rgb[c]
+                    values.putFloat(index, v)
+                    index += 4
+                    sum += v
+                    sumSquares += v * v
+                }
+            }
+        }
+        val n = size * size * 3
+        val mean = sum / n
+        val std = max(
+            sqrt(max(0.0, sumSquares / n - mean * mean)),
+            1.0 / sqrt(n.toDouble())
+        )
+        val m = mean.toFloat()
+        val inv = (1.0 / std).toFloat()
+        for (i in 0 until n) {
+            val offset = i * 4
+            values.putFloat(offset, (values.getFloat(offset) - m) * inv)
+        }
+        values.rewind()
+        return values
+    }
+
+    /**
+     * Returns pooled buffers to the pool.
+     */
+    open fun release() {
+        tensor?.let { pool.release(it) }
+        tensor = null
+    }
+
+    /**
+     * Maps an upright pixel-centre coordinate to the sensor image, undoing the clockwise
+     * rotation.
+     */
+    private fun toSensor(ux: Float, uy: Float) {
+        when (rotation) {
+            90 -> {
+                sx = uy
+                sy = height - 1 - ux
+            }
+            180 -> {
+                sx = width - 1 - ux
+                sy = height - 1 - uy
+            }
+            270 -> {
+                sx = width - 1 - uy
+                sy = ux
+            }
+            else -> {
+                sx = ux
+                sy = uy
+            }
+        }
+    }
+
+}
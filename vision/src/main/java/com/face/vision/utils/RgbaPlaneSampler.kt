@@ -0,0 +1,108 @@
+package com.face.vision.utils
+
+import android.graphics.Bitmap
+import java.nio.ByteBuffer
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.roundToInt
+
+/**
+ * Reads a camera RGBA_8888 plane in place instead of copying it into full-frame bitmaps.
+ */
+class RgbaPlaneSampler(pool: FramePool = FramePool()) : PlaneSampler(pool) {
+
+    private var plane: ByteBuffer? = null
+    private var rowStride = 0
+    private var pixelStride = 4
+
+    private var pixels = IntArray(0)
+    private var columns = IntArray(0)
+    private var detection: Bitmap? = null
+
+    fun bind(
+        plane: ByteBuffer,
+        width: Int,
+        height: Int,
+        rowStride: Int,
+        pixelStride: Int,
+        rotationDegrees: Int
+    ) {
+        bindGeometry(width, height, rotationDegrees)
+        this.plane = plane
+        this.rowStride = rowStride
+        this.pixelStride = pixelStride
+    }
+
+    /**
+     * Unrotated copy of the frame at most [maxSide] px long for the detector. Overwritten by
+     * the next call.
+     */
+    fun detectionBitmap(maxSide: Int): Bitmap {
+        val longest = max(width, height)
+        val scale = if (longest > maxSide) maxSide.toFloat() / longest else 1f
+        val w = max(1, (width * scale).roundToInt())
+        val h = max(1, (height * scale).roundToInt())
+        var bitmap = detection
+        if (bitmap == null || bitmap.width != w || bitmap.height != h) {
+            bitmap?.let { pool.release(it) }
+            bitmap = pool.bitmap(w, h)
+            detection = bitmap
+        }
+        if (pixels.size < w * h) pixels = IntArray(w * h)
+        if (columns.size < w) columns = IntArray(w)
+        val buffer = plane!!
+        val stepX = width.toFloat() / w
+        val stepY = height.toFloat() / h
+        for (x in 0 until w) {
+            val px = ((x + 0.5f) * stepX - 0.5f).roundToInt().coerceIn(0, width - 1)
+            columns[x] = px * pixelStride
+        }
+        var i = 0
+        for (y in 0 until h) {
+            val py = ((y + 0.5f) * stepY - 0.5f).roundToInt().coerceIn(0, height - 1)
+            val row = py * rowStride
+            for (x in 0 until w) {
+                val offset = row + columns[x]
+                val r = buffer.get(offset).toInt() and 0xFF
+                val g = buffer.get(offset + 1).toInt() and 0xFF
+                val b = buffer.get(offset + 2).toInt() and 0xFF
+                pixels[i++] = (0xFF shl 24) or (r shl 16) or (g shl 8) or b
+            }
+        }
+        bitmap.setPixels(pixels, 0, w, 0, 0, w, h)
+        return bitmap
+    }
+
+    override fun sample(fx: Float, fy: Float, rgb: FloatArray) {
+        val buffer = plane!!
+        val x0 = floor(fx).toInt()
+        val y0 = floor(fy).toInt()
+        val x1 = minOf(x0 + 1, width - 1)
+        val y1 = minOf(y0 + 1, height - 1)
+        val wx = fx - x0
+        val wy = fy - y0
+        val o00 = y0 * rowStride + x0 * pixelStride
+        val o01 = y0 * rowStride + x1 * pixelStride
+        val o10 = y1 * rowStride + x0 * pixelStride
+        val o11 = y1 * rowStride + x1 * pixelStride
+        for (c in 0 until 3) {
+            val top = lerp(buffer.get(o00 + c), buffer.get(o01 + c), wx)
+            val bottom = lerp(buffer.get(o10 + c), buffer.get(o11 + c), wx)
+            rgb[c] = top + (bottom - top) * wy
+        }
+    }
+
+    override fun release() {
+        super.release()
+        detection?.let { pool.release(it) }
+        detection = null
+        plane = null
+    }
+
+    private fun lerp(a: Byte, b: Byte, t: Float): Float {
+        val fa = (a.toInt() and 0xFF).toFloat()
+        val fb = (b.toInt() and 0xFF).toFloat()
+        return fa + (fb - fa) * t
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.face.vision.utils
+
+import kotlin.math.sqrt
+
+/**
+ * Distance kernels over primitive arrays. Loops are unrolled by four with independent
+ * accumulators and nothing is allocated, so they are safe to call per template per frame.
+ */
+object VectorMath {
+
+    private const val ABANDON_BLOCK = 64
+
+    fun squaredL2(a: FloatArray, aOffset: Int, b: FloatArray, bOffset: Int, length: Int): Float {
+        var s0 = 0f
+        var s1 = 0f
+        var s2 = 0f
+        var s3 = 0f
+        var i = 0
+        val end = length - 3
+        while (i < end) {
+            val d0 = a[aOffset + i] - b[bOffset + i]
+            val d1 = a[aOffset + i + 1] - b[bOffset + i + 1]
+            val d2 = a[aOffset + i + 2] - b[bOffset + i + 2]
+            val d3 = a[aOffset + i + 3] - b[bOffset + i + 3]
+            s0 += d0 * d0
+            s1 += d1 * d1
+            s2 += d2 * d2
+            s3 += d3 * d3
+            i += 4
+        }
+        while (i < length) {
+            val d = a[aOffset + i] - b[bOffset + i]
+            s0 += d * d
+            i++
+        }
+        return (s0 + s1) + (s2 + s3)
+    }
+
+    fun squaredL2(a: FloatArray, b: FloatArray): Float = squaredL2(a, 0, b, 0, a.size)
+
+    /**
+     * Squared L2 that gives up once the partial sum exceeds [bound]. The returned value is then
+     * only guaranteed to be greater than [bound], not the full distance.
+     */
+    fun squaredL2Bounded(
+        a: FloatArray,
+        aOffset: Int,
+        b: FloatArray,
+        bOffset: Int,
+        length: Int,
+        bound: Float
+    ): Float {
+        var sum = 0f
+        var i = 0
+        while (i < length) {
+            val block = minOf(ABANDON_BLOCK, length - i)
+            sum += squaredL2(a, aOffset + i, b, bOffset + i, block)
+            if (sum > bound) return sum
+            i += block
+        }
+        return sum
+    }
+
+    fun l2(a: FloatArray, aOffset: Int, b: FloatArray, bOffset: Int, length: Int): Float =
+        sqrt(squaredL2(a, aOffset, b, bOffset, length))
+
+    fun dot(a: FloatArray, aOffset: Int, b: FloatArray, bOffset: Int, length: Int): Float {
+        var s0 = 0f
+        var s1 = 0f
+        var s2 = 0f
+        var s3 = 0f
+        var i = 0
+        val end = length - 3
+        while (i < end) {
+            s0 += a[aOffset + i] * b[bOffset + i]
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1]
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2]
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3]
+            i += 4
+        }
+        while (i < length) {
+            s0 += a[aOffset + i] * b[bOffset + i]
+            i++
+        }
+        return (s0 + s1) + (s2 + s3)
+    }
+
+    fun dot(a: FloatArray, b: FloatArray): Float = dot(a, 0, b, 0, a.size)
+
+    /**
+     * Dot products of four rows of [a] with one row of [b], written to [out] at [outOffset].
+     */
+    fun dot4x1(
+        a: FloatArray,
+        aOffset: Int,
+        aStride: Int,
+        b: FloatArray,
+        bOffset: Int,
+        length: Int,
+        out: FloatArray,
+        outOffset: Int
+    ) {
+        val a0 = aOffset
+        val a1 = aOffset + aStride
+        val a2 = aOffset + 2 * aStride
+        val a3 = aOffset + 3 * aStride
+        var s0 = 0f
+        var s1 = 0f
+        var s2 = 0f
+        var s3 = 0f
+        for (i in 0 until length) {
+            val bv = b[bOffset + i]
+            s0 += a[a0 + i] * bv
+            s1 += a[a1 + i] * bv
+            s2 += a[a2 + i] * bv
+            s3 += a[a3 + i] * bv
+        }
+        out[outOffset] = s0
+        out[outOffset + 1] = s1
+        out[outOffset + 2] = s2
+        out[outOffset + 3] = s3
+    }
+
+    /**
+     * Integer dot product over int8 codes. Products are accumulated in [Int], which cannot
+     * overflow for embeddings up to 130k dims of values in -127..127.
+     */
+    fun dot(a: ByteArray, aOffset: Int, b: ByteArray, bOffset: Int, length: Int): Int {
+        var s0 = 0
+        var s1 = 0
+        var s2 = 0
+        var s3 = 0
+        var i = 0
+        val end = length - 3
+        while (i < end) {
+            s0 += a[aOffset + i] * b[bOffset + i]
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1]
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2]
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3]
+            i += 4
+        }
+        while (i < length) {
+            s0 += a[aOffset + i] * b[bOffset + i]
+            i++
+        }
+        return (s0 + s1) + (s2 + s3)
+    }
+
+    fun norm(a: FloatArray, offset: Int, length: Int): Float = sqrt(dot(a, offset, a, offset, length))
+
+    fun norm(a: FloatArray): Float = norm(a, 0, a.size)
+
+    /**
+     * Cosine similarity where both magnitudes are already known, e.g. the probe norm computed
+     * once per frame and the template norm stored in [com.face.vision.model.EmbeddingGallery].
+     */
+    fun cosine(
+        a: FloatArray,
+        aOffset: Int,
+        aNorm: Float,
+        b: FloatArray,
+        bOffset: Int,
+        bNorm: Float,
+        length: Int
+    ): Float {
+        val denominator = aNorm * bNorm
+        if (denominator == 0f) return 0f
+        return dot(a, aOffset, b, bOffset, length) / denominator
+    }
+
+    fun cosine(a: FloatArray, b: FloatArray): Float = cosine(a, 0, norm(a), b, 0, norm(b), a.size)
+
+    fun normalize(a: FloatArray, offset: Int = 0, length: Int = a.size): Float {
+        val n = norm(a, offset, length)
+        if (n > 0f) {
+            val inv = 1f / n
+            for (i in offset until offset + length) {
+                a[i] *= inv
+            }
+        }
+        return n
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.face.vision.utils
+
+import java.nio.ByteBuffer
+import kotlin.math.floor
+
+/**
+ * Reads YUV_420_888 camera planes in place, converting to RGB (full-range BT.601) only the
+ * pixels [faceTensor] samples.
+ */
+class YuvPlaneSampler(pool: FramePool = FramePool()) : PlaneSampler(pool) {
+
+    private var yPlane: ByteBuffer? = null
+    private var uPlane: ByteBuffer? = null
+    private var vPlane: ByteBuffer? = null
+    private var yRowStride = 0
+    private var yPixelStride = 1
+    private var uRowStride = 0
+    private var uPixelStride = 1
+    private var vRowStride = 0
+    private var vPixelStride = 1
+
+    fun bind(
+        y: ByteBuffer,
+        yRowStride: Int,
+        yPixelStride: Int,
+        u: ByteBuffer,
+        uRowStride: Int,
+        uPixelStride: Int,
+        v: ByteBuffer,
+        vRowStride: Int,
+        vPixelStride: Int,
+        width: Int,
+        height: Int,
+        rotationDegrees: Int
+    ) {
+        bindGeometry(width, height, rotationDegrees)
+        yPlane = y
+        uPlane = u
+        vPlane = v
+        this.yRowStride = yRowStride
+        this.yPixelStride = yPixelStride
+        this.uRowStride = uRowStride
+        this.uPixelStride = uPixelStride
+        this.vRowStride = vRowStride
+        this.vPixelStride = vPixelStride
+    }
+
+    override fun sample(fx: Float, fy: Float, rgb: FloatArray) {
+        val y = yPlane!!
+        val x0 = floor(fx).toInt()
+        val y0 = floor(fy).toInt()
+        val x1 = minOf(x0 + 1, width - 1)
+        val y1 = minOf(y0 + 1, height - 1)
+        val wx = fx - x0
+        val wy = fy - y0
+        val top = lerp(
+            y.get(y0 * yRowStride + x0 * yPixelStride),
+            y.get(y0 * yRowStride + x1 * yPixelStride),
+            wx
+        )
+        val bottom = lerp(
+            y.get(y1 * yRowStride + x0 * yPixelStride),
+            y.get(y1 * yRowStride + x1 * yPixelStride),
+            wx
+        )
+        val luma = top + (bottom - top) * wy
+
+        val cx = minOf((fx + 0.5f).toInt() shr 1, (width + 1) / 2 - 1)
+        val cy = minOf((fy + 0.5f).toInt() shr 1, (height + 1) / 2 - 1)
+        val u = (uPlane!!.get(cy * uRowStride + cx * uPixelStride).toInt() and 0xFF) - 128f
+        val v = (vPlane!!.get(cy * vRowStride + cx * vPixelStride).toInt() and 0xFF) - 128f
+
+        rgb[0] = (luma + 1.402f * v).coerceIn(0f, 255f)
+        rgb[1] = (luma - 0.344136f * u - 0.714136f * v).coerceIn(0f, 255f)
+        rgb[2] = (luma + 1.772f * u).coerceIn(0f, 255f)
+    }
+
+    override fun release() {
+        super.release()
+        yPlane = null
+        uPlane = null
+        vPlane = null
+    }
+
+    private fun lerp(a: Byte, b: Byte, t: Float): Float {
+        val fa = (a.toInt() and 0xFF).toFloat()
+        val fb = (b.toInt() and 0xFF).toFloat()
+        return fa + (fb - fa) * t
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.face.vision.model
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Build cost, recall and latency of [HnswIndex] against [LinearMatcher] on 512-dim templates.
+ * Random probes are the hard case; probes near an enrolled identity are the real one.
+ */
+class HnswIndexBenchmark {
+
+    private val dims = 512
+
+    @Test
+    fun buildRecallAndLatency() {
+        val rows = TestEmbeddings.benchmarkRows
+        val (gallery, centres) = TestEmbeddings.gallery(rows, dims, seed = 1)
+        lateinit var index: HnswIndex
+        val buildMs = TestEmbeddings.millis { index = HnswIndex.from(gallery) }
+        println("HNSW build, $rows x $dims: ${"%.0f".format(buildMs)} ms")
+
+        val linear = LinearMatcher(gallery)
+        val random = Random(2)
+        val probes = List(200) { TestEmbeddings.random(random, dims) }
+        val identities = IntArray(200) { random.nextInt(rows) }
+        val enrolled = identities.map { TestEmbeddings.near(centres[it], 0.3f, random) }
+        val linearMs = TestEmbeddings.millis { probes.forEach { linear.search(it, 5) } }
+        println("linear scan: ${"%.2f".format(linearMs / probes.size)} ms/query")
+        var defaultTop1 = 0
+        for (ef in listOf(64, 128, 256)) {
+            index.ef = ef
+            val recall = index.recallAgainst(linear, probes, 5)
+            val ms = TestEmbeddings.millis { probes.forEach { index.search(it, 5) } }
+            val top1 = enrolled.indices.count {
+                index.search(enrolled[it], 1).firstOrNull()?.label == "id${identities[it]}"
+            }
+            if (ef == 128) defaultTop1 = top1
+            println(
+                "ef=$ef: recall@5 ${"%.3f".format(recall)}, " +
+                        "${"%.2f".format(ms / probes.size)} ms/query, " +
+                        "top-1 near enrolled $top1 / ${enrolled.size}"
+            )
+        }
+        assertTrue(defaultTop1 >= enrolled.size * 95 / 100)
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.face.vision.model
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.IOException
+import java.util.Random
+
+class HnswIndexTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val dims = 32
+
+    @Test
+    fun recallAgainstLinearScan() {
+        val (gallery, _) = TestEmbeddings.gallery(2_000, dims, seed = 1)
+        val index = HnswIndex.from(gallery)
+        val random = Random(2)
+        val probes = List(100) { TestEmbeddings.random(random, dims) }
+        val recall = index.recallAgainst(LinearMatcher(gallery), probes, 5)
+        assertTrue("recall@5 $recall", recall >= 0.95f)
+    }
+
+    @Test
+    fun removedTemplatesNeverTakeResultSlots() {
+        val (gallery, centres) = TestEmbeddings.gallery(1_000, dims, seed = 3)
+        val index = HnswIndex.from(gallery)
+        index.ef = 16
+        val removed = HashSet<String>()
+        for (i in 0 until 1_000 step 5) {
+            for (j in i until i + 4) {
+                index.remove("id$j")
+                removed.add("id$j")
+            }
+        }
+        assertEquals(200, index.size)
+        assertEquals(800, index.deletedCount)
+        for (i in 0 until 50) {
+            val matches = index.search(centres[i], 10)
+            assertEquals(10, matches.size)
+            assertTrue(matches.none { it.label in removed })
+        }
+    }
+
+    @Test
+    fun compactReclaimsRemovedNodes() {
+        val (gallery, centres) = TestEmbeddings.gallery(1_000, dims, seed = 4)
+        val index = HnswIndex.from(gallery)
+        for (i in 0 until 1_000 step 2) index.remove("id$i")
+        assertEquals(1_000, index.nodeCount)
+        index.compact()
+        assertEquals(500, index.nodeCount)
+        assertEquals(0, index.deletedCount)
+        for (i in 1 until 1_000 step 50) {
+            assertEquals("id$i", index.search(centres[i], 1).single().label)
+        }
+        assertFalse(index.contains("id0"))
+    }
+
+    @Test
+    fun syncFollowsGalleryChanges() {
+        val (gallery, centres) = TestEmbeddings.gallery(300, dims, seed = 5)
+        val index = HnswIndex.from(gallery)
+        assertFalse(index.sync(gallery))
+
+        val random = Random(6)
+        val moved = TestEmbeddings.random(random, dims)
+        gallery.removeIdentity("id1")
+        gallery.add("id1", moved)
+        gallery.removeIdentity("id2")
+        gallery.add("new", centres[2])
+        assertTrue(index.sync(gallery))
+
+        assertEquals(gallery.size, index.size)
+        assertFalse(index.contains("id2"))
+        assertEquals("new", index.search(centres[2], 1).single().label)
+        assertEquals("id1", index.search(moved, 1).single().label)
+        assertFalse(index.sync(gallery))
+    }
+
+    @Test
+    fun syncCompactsOnceTooManyNodesAreRemoved() {
+        val (gallery, _) = TestEmbeddings.gallery(400, dims, seed = 7)
+        val index = HnswIndex.from(gallery)
+        for (i in 0 until 150) gallery.removeIdentity("id$i")
+        index.sync(gallery)
+        assertEquals(250, index.nodeCount)
+        assertEquals(0, index.deletedCount)
+    }
+
+    @Test
+    fun labelsWithSeveralTemplatesAreListedOnce() {
+        val (gallery, centres) = TestEmbeddings.gallery(200, dims, seed = 8, templates = 3, noise = 0.1f)
+        val index = HnswIndex.from(gallery)
+        assertEquals(600, index.size)
+        val matches = index.search(centres[7], 5)
+        assertEquals(5, matches.size)
+        assertEquals(5, matches.map { it.label }.toSet().size)
+        assertEquals("id7", matches.first().label)
+    }
+
+    @Test
+    fun cosineScoresAreSimilarities() {
+        val (gallery, centres) = TestEmbeddings.gallery(200, dims, seed = 9)
+        val index = HnswIndex.from(gallery, DistanceMetric.COSINE)
+        val best = index.search(centres[3], 1).single()
+        assertEquals("id3", best.label)
+        assertEquals(1f, best.score, 1e-4f)
+        assertFalse(index.sync(gallery))
+    }
+
+    @Test
+    fun writeAndReadKeepTheGraph() {
+        val (gallery, _) = TestEmbeddings.gallery(500, dims, seed = 10)
+        val index = HnswIndex.from(gallery)
+        index.remove("id0")
+        val file = folder.newFile("index.hnsw")
+        index.write(file)
+
+        val loaded = HnswIndex.read(file)
+        assertEquals(index.size, loaded.size)
+        assertEquals(index.nodeCount, loaded.nodeCount)
+        assertFalse(loaded.contains("id0"))
+        val random = Random(11)
+        repeat(20) {
+            val probe = TestEmbeddings.random(random, dims)
+            assertEquals(index.search(probe, 5), loaded.search(probe, 5))
+        }
+        gallery.removeIdentity("id0")
+        assertFalse(loaded.sync(gallery))
+    }
+
+    @Test(expected = IOException::class)
+    fun readRejectsTruncatedFile() {
+        val (gallery, _) = TestEmbeddings.gallery(50, dims, seed = 12)
+        val file = folder.newFile("index.hnsw")
+        HnswIndex.from(gallery).write(file)
+        file.writeBytes(file.readBytes().copyOf(file.length().toInt() / 2))
+        HnswIndex.read(file)
+    }
+
+}
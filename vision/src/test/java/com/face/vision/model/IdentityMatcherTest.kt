@@ -0,0 +1,111 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class IdentityMatcherTest {
+
+    private val dims = 64
+
+    @Test
+    fun earlyAbandonKeepsExactMeanRanking() {
+        val (gallery, centres) = TestEmbeddings.gallery(300, dims, seed = 1, templates = 4, noise = 0.5f)
+        checkAgainstBruteForce(gallery, centres, ScoreAggregation.MEAN) { distances ->
+            distances.average().toFloat()
+        }
+    }
+
+    @Test
+    fun earlyAbandonKeepsExactBestRanking() {
+        val (gallery, centres) = TestEmbeddings.gallery(300, dims, seed = 2, templates = 3, noise = 0.5f)
+        checkAgainstBruteForce(gallery, centres, ScoreAggregation.BEST) { distances ->
+            distances.minOrNull()!!
+        }
+    }
+
+    @Test
+    fun thresholdDropsIdentitiesThatCannotPass() {
+        val (gallery, centres) = TestEmbeddings.gallery(200, dims, seed = 4, templates = 3, noise = 0.5f)
+        val random = Random(5)
+        for (aggregation in ScoreAggregation.values()) {
+            repeat(30) {
+                val probe = TestEmbeddings.near(centres[random.nextInt(centres.size)], 0.7f, random)
+                val scores = bruteForce(gallery, probe, aggregation)
+                // Somewhere between the best and the fifth best identity
+                val threshold = (scores[0].score + scores[4].score) / 2
+                val expected = scores.filter { it.score <= threshold }.take(5)
+                val actual = IdentityMatcher(gallery, DistanceMetric.L2, aggregation, threshold)
+                    .search(probe, 5)
+                assertEquals(expected.map { it.label }, actual.map { it.label })
+                for (i in expected.indices) {
+                    assertEquals(expected[i].score, actual[i].score, 1e-3f)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun singleIdentityOutsideTheThresholdIsNotReturned() {
+        val gallery = EmbeddingGallery(dims)
+        val random = Random(6)
+        val enrolled = TestEmbeddings.random(random, dims)
+        repeat(3) { gallery.add("student", TestEmbeddings.near(enrolled, 0.1f, random)) }
+        for (aggregation in ScoreAggregation.values()) {
+            val matcher = IdentityMatcher(gallery, DistanceMetric.L2, aggregation, threshold = 2f)
+            assertEquals("student", matcher.search(TestEmbeddings.near(enrolled, 0.05f, random), 1).single().label)
+            assertTrue(matcher.search(TestEmbeddings.random(random, dims), 1).isEmpty())
+        }
+    }
+
+    private fun bruteForce(
+        gallery: EmbeddingGallery,
+        probe: FloatArray,
+        aggregation: ScoreAggregation
+    ): List<MatchResult> = (0 until gallery.identityCount).map { identity ->
+        val rows = gallery.identityStart(identity) until gallery.identityEnd(identity)
+        val score = when (aggregation) {
+            ScoreAggregation.MEAN -> rows.map {
+                VectorMath.l2(probe, 0, gallery.data, gallery.offsetOf(it), dims)
+            }.average().toFloat()
+            ScoreAggregation.BEST -> rows.minOf {
+                VectorMath.l2(probe, 0, gallery.data, gallery.offsetOf(it), dims)
+            }
+            ScoreAggregation.CENTROID -> {
+                val centroid = FloatArray(dims)
+                for (row in rows) {
+                    for (d in 0 until dims) centroid[d] += gallery.data[gallery.offsetOf(row) + d] / rows.count()
+                }
+                VectorMath.l2(probe, 0, centroid, 0, dims)
+            }
+        }
+        MatchResult(gallery.identityLabel(identity), score)
+    }.sortedBy { it.score }
+
+    private fun checkAgainstBruteForce(
+        gallery: EmbeddingGallery,
+        centres: List<FloatArray>,
+        aggregation: ScoreAggregation,
+        aggregate: (List<Float>) -> Float
+    ) {
+        val matcher = IdentityMatcher(gallery, DistanceMetric.L2, aggregation)
+        val random = Random(3)
+        repeat(50) {
+            val probe = TestEmbeddings.near(centres[random.nextInt(centres.size)], 0.7f, random)
+            val expected = (0 until gallery.identityCount).map { identity ->
+                val distances = (gallery.identityStart(identity) until gallery.identityEnd(identity)).map {
+                    VectorMath.l2(probe, 0, gallery.data, gallery.offsetOf(it), dims)
+                }
+                MatchResult(gallery.identityLabel(identity), aggregate(distances))
+            }.sortedBy { it.score }.take(5)
+            val actual = matcher.search(probe, 5)
+            assertEquals(expected.map { it.label }, actual.map { it.label })
+            for (i in expected.indices) {
+                assertEquals(expected[i].score, actual[i].score, 1e-3f)
+            }
+        }
+    }
+
+}
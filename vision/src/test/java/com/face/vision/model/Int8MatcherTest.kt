@@ -0,0 +1,87 @@
+package com.face.vision.model
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+import kotlin.math.abs
+
+class Int8MatcherTest {
+
+    private val model = ModelInfo.FACENET_512
+    private val dims = model.outputDims
+
+    @Test
+    fun quantizationErrorIsAtMostHalfAStep() {
+        val random = Random(1)
+        val embedding = TestEmbeddings.random(random, dims)
+        val quantized = Int8Embedding.quantize(embedding)
+        val restored = quantized.toFloatArray()
+        for (i in 0 until dims) {
+            assertEquals(embedding[i], restored[i], quantized.scale / 2 + 1e-6f)
+        }
+        assertEquals(0f, Int8Embedding.quantize(FloatArray(dims)).scale, 0f)
+    }
+
+    @Test
+    fun l2ScoresAndDecisionsFollowFloat() {
+        val (gallery, centres) = TestEmbeddings.gallery(200, dims, seed = 2)
+        val float = LinearMatcher(gallery)
+        val int8 = Int8Matcher(Int8Gallery.from(gallery))
+        // Noise from 0.8 to 1.3 puts the true identity's distance around l2Threshold
+        val random = Random(3)
+        var maxError = 0f
+        var flipped = 0
+        var accepted = 0
+        repeat(500) {
+            val centre = centres[random.nextInt(centres.size)]
+            val probe = TestEmbeddings.near(centre, 0.8f + random.nextFloat() * 0.5f, random)
+            val expected = float.search(probe, 1).single()
+            val actual = int8.search(probe, 1).single()
+            assertEquals(expected.label, actual.label)
+            maxError = maxOf(maxError, abs(actual.score - expected.score) / expected.score)
+            if (DistanceMetric.L2.accepts(expected.score, model)) accepted++
+            if (DistanceMetric.L2.accepts(expected.score, model) !=
+                DistanceMetric.L2.accepts(actual.score, model)
+            ) {
+                flipped++
+                assertEquals(model.l2Threshold, expected.score, model.l2Threshold * 0.01f)
+            }
+        }
+        assertTrue("relative L2 error $maxError", maxError < 0.01f)
+        assertTrue("$flipped of 500 decisions flipped", flipped <= 5)
+        assertTrue("$accepted of 500 accepted", accepted in 100..400)
+    }
+
+    @Test
+    fun cosineScoresAndDecisionsFollowFloat() {
+        val (gallery, centres) = TestEmbeddings.gallery(200, dims, seed = 4)
+        val float = LinearMatcher(gallery, DistanceMetric.COSINE)
+        val int8 = Int8Matcher(Int8Gallery.from(gallery), DistanceMetric.COSINE)
+        // Noise from 2 to 5 puts the similarity around cosineThreshold
+        val random = Random(5)
+        var maxError = 0f
+        var flipped = 0
+        var accepted = 0
+        repeat(500) {
+            val centre = centres[random.nextInt(centres.size)]
+            val probe = TestEmbeddings.near(centre, 2f + random.nextFloat() * 3f, random)
+            val expected = float.search(probe, 1).single()
+            val actual = int8.search(probe, 1).single()
+            if (expected.label == actual.label) {
+                maxError = maxOf(maxError, abs(actual.score - expected.score))
+            }
+            if (DistanceMetric.COSINE.accepts(expected.score, model)) accepted++
+            if (DistanceMetric.COSINE.accepts(expected.score, model) !=
+                DistanceMetric.COSINE.accepts(actual.score, model)
+            ) {
+                flipped++
+                assertEquals(model.cosineThreshold, expected.score, 0.01f)
+            }
+        }
+        assertTrue("cosine error $maxError", maxError < 0.01f)
+        assertTrue("$flipped of 500 decisions flipped", flipped <= 5)
+        assertTrue("$accepted of 500 accepted", accepted in 100..400)
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.face.vision.model
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+/**
+ * [LinearMatcher.matchAll] against one [LinearMatcher.search] per probe on 512-dim templates,
+ * for probes near an enrolled identity (where per-probe early abandoning works well) and for
+ * random probes (where it barely does).
+ */
+class LinearMatcherBenchmark {
+
+    private val dims = 512
+    private val count = 256
+
+    @Test
+    fun batchAgainstPerProbe() {
+        val rows = TestEmbeddings.benchmarkRows
+        val (gallery, centres) = TestEmbeddings.gallery(rows, dims, seed = 1)
+        val matcher = LinearMatcher(gallery)
+        val random = Random(2)
+        val identities = IntArray(count) { random.nextInt(rows) }
+        val enrolled = List(count) { TestEmbeddings.near(centres[identities[it]], 0.3f, random) }
+        val unknown = List(count) { TestEmbeddings.random(random, dims) }
+
+        val batch = time("near enrolled", matcher, enrolled, rows)
+        assertEquals(identities.map { "id$it" }, batch.map { it.single().label })
+        time("random", matcher, unknown, rows)
+    }
+
+    private fun time(
+        name: String,
+        matcher: LinearMatcher,
+        probes: List<FloatArray>,
+        rows: Int
+    ): List<List<MatchResult>> {
+        val packed = FloatArray(count * dims)
+        probes.forEachIndexed { i, probe -> probe.copyInto(packed, i * dims) }
+        repeat(3) {
+            probes.forEach { matcher.search(it, 1) }
+            matcher.matchAll(packed, count)
+        }
+        val perProbeMs = (1..5).minOf {
+            TestEmbeddings.millis { probes.forEach { matcher.search(it, 1) } }
+        }
+        lateinit var batch: List<List<MatchResult>>
+        val batchMs = (1..5).minOf { TestEmbeddings.millis { batch = matcher.matchAll(packed, count) } }
+        println(
+            "$name, $count probes x $rows x $dims: per probe ${"%.0f".format(perProbeMs)} ms, " +
+                    "matchAll ${"%.0f".format(batchMs)} ms"
+        )
+        return batch
+    }
+
+}
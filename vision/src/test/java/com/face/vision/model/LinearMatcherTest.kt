@@ -0,0 +1,80 @@
+package com.face.vision.model
+
+import com.face.vision.utils.VectorMath
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+class LinearMatcherTest {
+
+    private val dims = 64
+
+    @Test
+    fun searchReturnsTheBruteForceTopK() {
+        val (gallery, centres) = TestEmbeddings.gallery(300, dims, seed = 1)
+        val random = Random(2)
+        for (metric in DistanceMetric.values()) {
+            val matcher = LinearMatcher(gallery, metric)
+            repeat(30) {
+                val probe = TestEmbeddings.near(centres[random.nextInt(centres.size)], 0.7f, random)
+                assertMatches(bruteForce(gallery, probe, metric).take(5), matcher.search(probe, 5))
+            }
+        }
+    }
+
+    @Test
+    fun thresholdKeepsOnlyPassingTemplates() {
+        val (gallery, centres) = TestEmbeddings.gallery(300, dims, seed = 3)
+        val random = Random(4)
+        for (metric in DistanceMetric.values()) {
+            repeat(30) {
+                val probe = TestEmbeddings.near(centres[random.nextInt(centres.size)], 0.7f, random)
+                val scores = bruteForce(gallery, probe, metric)
+                val threshold = (scores[1].score + scores[2].score) / 2
+                val matcher = LinearMatcher(gallery, metric, threshold)
+                // Only the two templates on the right side of the threshold come back
+                assertMatches(scores.take(2), matcher.search(probe, 5))
+            }
+        }
+    }
+
+    @Test
+    fun matchAllAgreesWithSearch() {
+        val (gallery, centres) = TestEmbeddings.gallery(100, dims, seed = 5)
+        val random = Random(6)
+        val count = 37
+        val probes = FloatArray(count * dims)
+        for (i in 0 until count) {
+            System.arraycopy(TestEmbeddings.near(centres[random.nextInt(centres.size)], 0.7f, random), 0, probes, i * dims, dims)
+        }
+        for (metric in DistanceMetric.values()) {
+            val matcher = LinearMatcher(gallery, metric)
+            val all = matcher.matchAll(probes, count, 3)
+            for (i in 0 until count) {
+                assertMatches(matcher.search(probes.copyOfRange(i * dims, (i + 1) * dims), 3), all[i])
+            }
+        }
+    }
+
+    private fun assertMatches(expected: List<MatchResult>, actual: List<MatchResult>) {
+        assertEquals(expected.map { it.label }, actual.map { it.label })
+        for (i in expected.indices) {
+            assertEquals(expected[i].score, actual[i].score, 1e-3f)
+        }
+    }
+
+    private fun bruteForce(gallery: EmbeddingGallery, probe: FloatArray, metric: DistanceMetric) =
+        (0 until gallery.size).map { row ->
+            val offset = gallery.offsetOf(row)
+            if (metric == DistanceMetric.L2) {
+                MatchResult(gallery.labelAt(row), VectorMath.l2(probe, 0, gallery.data, offset, dims))
+            } else {
+                val similarity = VectorMath.dot(probe, 0, gallery.data, offset, dims) /
+                        (VectorMath.norm(probe) * gallery.normAt(row))
+                MatchResult(gallery.labelAt(row), similarity)
+            }
+        }.let { scores ->
+            if (metric == DistanceMetric.L2) scores.sortedBy { it.score } else scores.sortedByDescending { it.score }
+        }
+
+}
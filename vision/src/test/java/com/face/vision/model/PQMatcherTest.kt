@@ -0,0 +1,64 @@
+package com.face.vision.model
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class PQMatcherTest {
+
+    private val dims = ModelInfo.FACENET_512.outputDims
+
+    @Test
+    fun codeSizeMatchesSubspaces() {
+        val (gallery, _) = TestEmbeddings.gallery(300, dims, seed = 1)
+        val matcher = PQMatcher.build(gallery, subspaces = 32)
+        assertEquals(32, matcher.bytesPerTemplate)
+        assertEquals(32, matcher.quantizer.encode(gallery.copyVector(0)).size)
+        assertEquals(gallery.size, matcher.size)
+    }
+
+    @Test
+    fun asymmetricRankingRecallsTheExactTopOne() {
+        val (gallery, centres) = TestEmbeddings.gallery(500, dims, seed = 2)
+        val exact = LinearMatcher(gallery)
+        val pq = PQMatcher.build(gallery)
+        val random = Random(3)
+        var recalled = 0
+        repeat(200) {
+            val probe = TestEmbeddings.near(centres[random.nextInt(centres.size)], 0.8f, random)
+            val expected = exact.search(probe, 1).single().label
+            if (pq.search(probe, 10).any { it.label == expected }) recalled++
+        }
+        assertTrue("recall@10 $recalled of 200", recalled >= 190)
+    }
+
+    @Test
+    fun rerankRestoresTheExactTopOne() {
+        val (gallery, centres) = TestEmbeddings.gallery(500, dims, seed = 4)
+        for (metric in DistanceMetric.values()) {
+            val exact = LinearMatcher(gallery, metric)
+            val pq = PQMatcher.build(gallery, metric, keepForRerank = true)
+            val random = Random(5)
+            repeat(100) {
+                val probe = TestEmbeddings.near(centres[random.nextInt(centres.size)], 0.8f, random)
+                val expected = exact.search(probe, 1).single()
+                val actual = pq.search(probe, 1).single()
+                assertEquals(expected.label, actual.label)
+                assertEquals(expected.score, actual.score, 1e-3f * Math.abs(expected.score))
+            }
+        }
+    }
+
+    @Test
+    fun resultsAreOrderedBestFirst() {
+        val (gallery, centres) = TestEmbeddings.gallery(200, dims, seed = 6)
+        val pq = PQMatcher.build(gallery)
+        val results = pq.search(TestEmbeddings.near(centres[0], 0.8f, Random(7)), 10)
+        assertEquals(10, results.size)
+        for (i in 1 until results.size) {
+            assertTrue(results[i - 1].score <= results[i].score)
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.face.vision.model
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+class ShardedMatcherTest {
+
+    private val dims = 64
+    private val executor = ShardedMatcher.newExecutor(4)
+
+    @After
+    fun shutdown() {
+        executor.shutdown()
+    }
+
+    @Test
+    fun shardsRankLikeTheSerialMatcher() {
+        val (gallery, centres) = TestEmbeddings.gallery(403, dims, seed = 1, templates = 3, noise = 0.5f)
+        val random = Random(2)
+        val probes = List(30) { TestEmbeddings.near(centres[random.nextInt(centres.size)], 0.7f, random) }
+        for (metric in DistanceMetric.values()) {
+            for (aggregation in ScoreAggregation.values()) {
+                val serial = IdentityMatcher(gallery, metric, aggregation)
+                val sharded = ShardedMatcher(gallery, executor, metric, aggregation, parallelThreshold = 0, shards = 4)
+                for (probe in probes) {
+                    val expected = serial.search(probe, 5)
+                    val actual = sharded.search(probe, 5)
+                    assertEquals(expected.map { it.label }, actual.map { it.label })
+                    for (i in expected.indices) {
+                        assertEquals(expected[i].score, actual[i].score, 1e-4f)
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun ranksIdentitiesNotTemplates() {
+        val (gallery, centres) = TestEmbeddings.gallery(100, dims, seed = 3, templates = 4, noise = 0.1f)
+        val sharded = ShardedMatcher(gallery, executor, parallelThreshold = 0, shards = 4)
+        assertEquals(100, sharded.size)
+        val matches = sharded.search(centres[42], 4)
+        assertEquals("id42", matches.first().label)
+        assertEquals(4, matches.map { it.label }.toSet().size)
+    }
+
+}
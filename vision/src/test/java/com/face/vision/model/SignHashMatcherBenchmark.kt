@@ -0,0 +1,46 @@
+package com.face.vision.model
+
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Latency and recall of [SignHashMatcher] against the float [LinearMatcher] scan on 512-dim
+ * templates, for random probes and for probes near an enrolled identity.
+ */
+class SignHashMatcherBenchmark {
+
+    private val dims = 512
+
+    @Test
+    fun latencyAndRecall() {
+        val rows = TestEmbeddings.benchmarkRows
+        val (gallery, centres) = TestEmbeddings.gallery(rows, dims, seed = 1)
+        val linear = LinearMatcher(gallery)
+        val random = Random(2)
+        val probes = List(200) { TestEmbeddings.random(random, dims) }
+        val identities = IntArray(200) { random.nextInt(rows) }
+        val enrolled = identities.map { TestEmbeddings.near(centres[it], 0.3f, random) }
+
+        repeat(2) { probes.forEach { linear.search(it, 5) } }
+        val linearMs = TestEmbeddings.millis { probes.forEach { linear.search(it, 5) } }
+        println("linear scan, $rows x $dims: ${"%.3f".format(linearMs / probes.size)} ms/query")
+        var top1AtDefault = 0
+        for (depth in listOf(64, 256, 1024)) {
+            val matcher = SignHashMatcher(gallery, rerankDepth = depth)
+            repeat(2) { probes.forEach { matcher.search(it, 5) } }
+            val ms = TestEmbeddings.millis { probes.forEach { matcher.search(it, 5) } }
+            val recall = matcher.recallAgainst(linear, probes, 5)
+            val top1 = enrolled.indices.count {
+                matcher.search(enrolled[it], 1).firstOrNull()?.label == "id${identities[it]}"
+            }
+            if (depth == 256) top1AtDefault = top1
+            println(
+                "rerankDepth=$depth: ${"%.3f".format(ms / probes.size)} ms/query, " +
+                        "recall@5 ${"%.3f".format(recall)}, top-1 near enrolled $top1 / ${enrolled.size}"
+            )
+        }
+        assertTrue(top1AtDefault >= enrolled.size * 95 / 100)
+    }
+
+}
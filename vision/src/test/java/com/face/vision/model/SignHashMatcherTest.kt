@@ -0,0 +1,45 @@
+package com.face.vision.model
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class SignHashMatcherTest {
+
+    private val dims = 128
+
+    @Test
+    fun findsEnrolledIdentitiesAfterDirectGalleryChanges() {
+        val (gallery, centres) = TestEmbeddings.gallery(500, dims, seed = 1)
+        val matcher = SignHashMatcher(gallery, rerankDepth = 32)
+        assertEquals("id7", matcher.search(centres[7], 1).single().label)
+
+        gallery.removeIdentity("id7")
+        val random = Random(2)
+        val moved = TestEmbeddings.random(random, dims)
+        gallery.add("id3", moved)
+        gallery.set(gallery.identityStart(gallery.identityOf("id9")), centres[7])
+
+        assertEquals("id9", matcher.search(centres[7], 1).single().label)
+        assertEquals("id3", matcher.search(moved, 1).single().label)
+        assertTrue(matcher.search(centres[9], 5).none { it.label == "id7" })
+    }
+
+    @Test
+    fun addKeepsCodesInStep() {
+        val (gallery, _) = TestEmbeddings.gallery(100, dims, seed = 3)
+        val matcher = SignHashMatcher(gallery, rerankDepth = 8)
+        val random = Random(4)
+        matcher.search(TestEmbeddings.random(random, dims), 1)
+        repeat(20) {
+            val embedding = TestEmbeddings.random(random, dims)
+            matcher.add("new$it", embedding)
+            assertEquals("new$it", matcher.search(embedding, 1).single().label)
+        }
+        val inserted = TestEmbeddings.random(random, dims)
+        matcher.add("id0", inserted)
+        assertEquals("id0", matcher.search(inserted, 1).single().label)
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.face.vision.model
+
+import java.util.Random
+
+internal object TestEmbeddings {
+
+    /**
+     * Gallery size used by the benchmarks; pass -Pbenchmark.rows=100000 for the full run.
+     */
+    val benchmarkRows: Int
+        get() = System.getProperty("benchmark.rows")?.toIntOrNull() ?: 2_000
+
+    fun random(random: Random, dims: Int, scale: Float = 1f): FloatArray =
+        FloatArray(dims) { random.nextGaussian().toFloat() * scale }
+
+    fun near(center: FloatArray, noise: Float, random: Random): FloatArray =
+        FloatArray(center.size) { center[it] + random.nextGaussian().toFloat() * noise }
+
+    /**
+     * [identities] random centres labelled "id<n>", each with [templates] templates spread by
+     * [noise] around it. Returns the gallery and the centres.
+     */
+    fun gallery(
+        identities: Int,
+        dims: Int,
+        seed: Long,
+        templates: Int = 1,
+        noise: Float = 0f
+    ): Pair<EmbeddingGallery, List<FloatArray>> {
+        val random = Random(seed)
+        val gallery = EmbeddingGallery(dims, identities * templates)
+        val centres = ArrayList<FloatArray>(identities)
+        for (i in 0 until identities) {
+            val centre = random(random, dims)
+            centres.add(centre)
+            repeat(templates) {
+                gallery.add("id$i", if (noise > 0f) near(centre, noise, random) else centre)
+            }
+        }
+        return gallery to centres
+    }
+
+    inline fun millis(block: () -> Unit): Double {
+        val start = System.nanoTime()
+        block()
+        return (System.nanoTime() - start) / 1e6
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.face.vision.utils
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class EmbeddingCacheTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val embedding = FloatArray(8) { it * 0.5f }
+
+    // 4-byte length plus 8 floats
+    private val entryBytes = 36L
+
+    @Test
+    fun putThenGetReturnsTheEmbedding() {
+        val cache = EmbeddingCache(folder.root)
+        cache.put("a", embedding)
+        cache.put("none", FloatArray(0))
+        assertArrayEquals(embedding, cache.get("a"), 0f)
+        assertEquals(0, cache.get("none")!!.size)
+        assertNull(cache.get("missing"))
+    }
+
+    @Test
+    fun entriesSurviveANewInstance() {
+        val directory = File(folder.root, "cache")
+        EmbeddingCache(directory).put("a", embedding)
+        // Nothing is listed until the first call
+        val reopened = EmbeddingCache(directory)
+        assertArrayEquals(embedding, reopened.get("a"), 0f)
+    }
+
+    @Test
+    fun leastRecentlyUsedEntriesAreTrimmedToMaxBytes() {
+        val cache = EmbeddingCache(folder.root, maxBytes = entryBytes * 2)
+        cache.put("a", embedding)
+        cache.put("b", embedding)
+        assertNotNull(cache.get("a"))
+        cache.put("c", embedding)
+        assertNotNull(cache.get("a"))
+        assertNull(cache.get("b"))
+        assertNotNull(cache.get("c"))
+        assertFalse(File(folder.root, "b.emb").exists())
+    }
+
+    @Test
+    fun reopeningTrimsAnOversizedDirectory() {
+        val large = EmbeddingCache(folder.root)
+        for (key in listOf("a", "b", "c")) large.put(key, embedding)
+        val small = EmbeddingCache(folder.root, maxBytes = entryBytes)
+        small.get("x")
+        assertEquals(1, folder.root.listFiles { file -> file.name.endsWith(".emb") }!!.size)
+    }
+
+    @Test
+    fun corruptOrTruncatedEntriesAreDropped() {
+        val cache = EmbeddingCache(folder.root)
+        cache.put("truncated", embedding)
+        cache.put("corrupt", embedding)
+        val truncated = File(folder.root, "truncated.emb")
+        truncated.writeBytes(truncated.readBytes().copyOf(20))
+        // Length field claims 2^30 floats
+        File(folder.root, "corrupt.emb").writeBytes(byteArrayOf(0, 0, 0, 0x40, 0, 0, 0, 0))
+        assertNull(cache.get("truncated"))
+        assertNull(cache.get("corrupt"))
+        assertFalse(truncated.exists())
+        assertFalse(File(folder.root, "corrupt.emb").exists())
+    }
+
+    @Test
+    fun removeAndClearDeleteFiles() {
+        val cache = EmbeddingCache(folder.root)
+        cache.put("a", embedding)
+        cache.put("b", embedding)
+        cache.remove("a")
+        assertNull(cache.get("a"))
+        cache.clear()
+        assertNull(cache.get("b"))
+        assertEquals(0, folder.root.listFiles { file -> file.name.endsWith(".emb") }!!.size)
+    }
+
+}
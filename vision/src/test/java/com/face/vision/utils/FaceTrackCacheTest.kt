@@ -0,0 +1,89 @@
+package com.face.vision.utils
+
+import android.graphics.Rect
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class FaceTrackCacheTest {
+
+    private val embedding = FloatArray(4) { it.toFloat() }
+
+    private fun rect(left: Int, top: Int, right: Int, bottom: Int) = Rect().apply {
+        this.left = left
+        this.top = top
+        this.right = right
+        this.bottom = bottom
+    }
+
+    private fun cacheWithTrack(): FaceTrackCache {
+        val cache = FaceTrackCache(revalidateMillis = 1_000L)
+        cache.store(1, rect(100, 100, 200, 200), embedding, "ivan", true, 0L)
+        return cache
+    }
+
+    @Test
+    fun stillFaceReusesItsDecision() {
+        val entry = cacheWithTrack().lookup(1, rect(105, 95, 205, 195), 500L)
+        assertNotNull(entry)
+        assertEquals("ivan", entry!!.label)
+        assertEquals(true, entry.recognized)
+    }
+
+    @Test
+    fun untrackedFacesAreNeverCached() {
+        val cache = cacheWithTrack()
+        assertNull(cache.lookup(null, rect(100, 100, 200, 200), 0L))
+        assertNull(cache.lookup(2, rect(100, 100, 200, 200), 0L))
+        cache.store(null, rect(0, 0, 10, 10), embedding, "x", true, 0L)
+        assertNull(cache.lookup(null, rect(0, 0, 10, 10), 0L))
+    }
+
+    @Test
+    fun movingOrResizingInvalidates() {
+        val cache = cacheWithTrack()
+        // Centre moves by 25% of the box size
+        assertNull(cache.lookup(1, rect(125, 100, 225, 200), 0L))
+        assertNull(cache.lookup(1, rect(100, 125, 200, 225), 0L))
+        // Area grows by 21%
+        assertNull(cache.lookup(1, rect(95, 95, 205, 205), 0L))
+        assertNotNull(cache.lookup(1, rect(98, 98, 202, 202), 0L))
+    }
+
+    @Test
+    fun decisionsExpireAfterRevalidateMillis() {
+        val cache = cacheWithTrack()
+        assertNotNull(cache.lookup(1, rect(100, 100, 200, 200), 999L))
+        assertNull(cache.lookup(1, rect(100, 100, 200, 200), 1_000L))
+    }
+
+    @Test
+    fun revalidationReplacesTheDecision() {
+        val cache = cacheWithTrack()
+        assertNull(cache.lookup(1, rect(100, 100, 200, 200), 1_000L))
+        cache.store(1, rect(100, 100, 200, 200), embedding, "unknown", false, 1_000L)
+        val entry = cache.lookup(1, rect(100, 100, 200, 200), 1_500L)
+        assertEquals("unknown", entry!!.label)
+        assertEquals(false, entry.recognized)
+        assertNull(cache.lookup(1, rect(100, 100, 200, 200), 2_000L))
+    }
+
+    @Test
+    fun keepsAtMostMaxTracksAndForgetsTracksOutOfView() {
+        val cache = FaceTrackCache(maxTracks = 2)
+        val box = rect(0, 0, 10, 10)
+        cache.store(1, box, embedding, "a", true, 0L)
+        cache.store(2, box, embedding, "b", true, 0L)
+        cache.lookup(1, box, 0L)
+        cache.store(3, box, embedding, "c", true, 0L)
+        assertNotNull(cache.lookup(1, box, 0L))
+        assertNull(cache.lookup(2, box, 0L))
+        cache.retain(listOf(3))
+        assertNull(cache.lookup(1, box, 0L))
+        assertNotNull(cache.lookup(3, box, 0L))
+        cache.clear()
+        assertNull(cache.lookup(3, box, 0L))
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.face.vision.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class FramePoolTest {
+
+    @Test
+    fun releasedBuffersAreReusedCleared() {
+        val pool = FramePool()
+        val buffer = pool.buffer(64)
+        assertTrue(buffer.isDirect)
+        assertEquals(ByteOrder.nativeOrder(), buffer.order())
+        buffer.putInt(7).flip()
+        pool.release(buffer)
+        val reused = pool.buffer(64)
+        assertSame(buffer, reused)
+        assertEquals(0, reused.position())
+        assertEquals(64, reused.limit())
+        assertNotSame(reused, pool.buffer(64))
+    }
+
+    @Test
+    fun sizesDoNotMix() {
+        val pool = FramePool()
+        val small = pool.floats(4)
+        pool.release(small)
+        assertNotSame(small, pool.floats(8))
+        assertSame(small, pool.floats(4))
+        val buffer = pool.buffer(16)
+        pool.release(buffer)
+        assertNotSame(buffer, pool.buffer(32))
+    }
+
+    @Test
+    fun heapBuffersAreNotPooled() {
+        val pool = FramePool()
+        pool.release(ByteBuffer.allocate(16))
+        assertTrue(pool.buffer(16).isDirect)
+    }
+
+    @Test
+    fun leastRecentlyReleasedSizeIsEvictedFirst() {
+        val pool = FramePool(maxBytes = 64)
+        val first = pool.floats(8)
+        val second = pool.floats(4)
+        val third = pool.floats(2)
+        pool.release(first)
+        pool.release(second)
+        // 32 + 16 + 8 bytes fit; another 32 pushes out the oldest size class
+        pool.release(third)
+        val fourth = FloatArray(8)
+        pool.release(fourth)
+        assertSame(fourth, pool.floats(8))
+        assertNotSame(first, pool.floats(8))
+        assertSame(second, pool.floats(4))
+        assertSame(third, pool.floats(2))
+    }
+
+    @Test
+    fun objectsLargerThanThePoolAreDropped() {
+        val pool = FramePool(maxBytes = 16)
+        val large = pool.floats(8)
+        pool.release(large)
+        assertNotSame(large, pool.floats(8))
+    }
+
+    @Test
+    fun repeatedReleaseIsPooledOnce() {
+        val pool = FramePool()
+        val floats = pool.floats(4)
+        pool.release(floats)
+        pool.release(floats)
+        val buffer = pool.buffer(16)
+        pool.release(buffer)
+        pool.release(buffer)
+        assertSame(floats, pool.floats(4))
+        assertNotSame(floats, pool.floats(4))
+        assertSame(buffer, pool.buffer(16))
+        assertNotSame(buffer, pool.buffer(16))
+    }
+
+    @Test
+    fun repeatedReleaseDoesNotCountTwice() {
+        val pool = FramePool(maxBytes = 32)
+        val first = pool.floats(4)
+        val second = pool.floats(4)
+        pool.release(first)
+        pool.release(first)
+        pool.release(second)
+        assertSame(second, pool.floats(4))
+        assertSame(first, pool.floats(4))
+    }
+
+    @Test
+    fun clearEmptiesThePool() {
+        val pool = FramePool()
+        val floats = pool.floats(4)
+        pool.release(floats)
+        pool.clear()
+        assertNotSame(floats, pool.floats(4))
+    }
+
+}
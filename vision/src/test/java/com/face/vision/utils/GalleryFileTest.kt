@@ -0,0 +1,101 @@
+package com.face.vision.utils
+
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.ModelInfo
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Random
+
+class GalleryFileTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val model = ModelInfo.FACENET_QUANTIZED
+
+    @Test
+    fun writeAndReadKeepRowsLabelsAndNorms() {
+        val gallery = gallery(Random(1), "ann", "bob", "bob", "zoë")
+        val file = folder.newFile("gallery.bin")
+        GalleryFile.write(file, model, gallery)
+
+        val read = GalleryFile.read(file, model)!!
+        assertEquals(gallery.size, read.size)
+        for (row in 0 until gallery.size) {
+            assertEquals(gallery.labelAt(row), read.labelAt(row))
+            assertEquals(gallery.normAt(row), read.normAt(row), 0f)
+            assertArrayEquals(gallery.copyVector(row), read.copyVector(row), 0f)
+        }
+        assertEquals(3, read.identityCount)
+    }
+
+    @Test
+    fun fileForAnotherModelIsIgnored() {
+        val file = folder.newFile("gallery.bin")
+        GalleryFile.write(file, model, gallery(Random(2), "ann"))
+        assertNull(GalleryFile.read(file, ModelInfo.FACENET_512))
+        assertNull(GalleryFile.read(folder.root.resolve("missing.bin"), model))
+    }
+
+    @Test
+    fun headerIsReadWithoutTheBody() {
+        val file = folder.newFile("gallery.bin")
+        GalleryFile.write(file, model, gallery(Random(3), "ann", "bob"))
+        file.writeBytes(file.readBytes().copyOf(40))
+
+        val header = GalleryFile.readHeader(file)!!
+        assertEquals(model.name, header.modelName)
+        assertEquals(model.outputDims, header.dims)
+        assertEquals(2, header.rows)
+    }
+
+    @Test(expected = IOException::class)
+    fun truncatedBodyIsRejected() {
+        val file = folder.newFile("gallery.bin")
+        GalleryFile.write(file, model, gallery(Random(4), "ann", "bob"))
+        file.writeBytes(file.readBytes().copyOf(file.length().toInt() - 4))
+        GalleryFile.read(file, model)
+    }
+
+    @Test
+    fun oversizedRowCountIsRejectedBeforeAllocating() {
+        val file = folder.newFile("gallery.bin")
+        GalleryFile.write(file, model, gallery(Random(5)))
+        val bytes = file.readBytes()
+        val rowsAt = 16 + model.name.toByteArray(Charsets.UTF_8).size
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(rowsAt, 10_000_000)
+        file.writeBytes(bytes)
+        assertEquals(10_000_000, GalleryFile.readHeader(file)!!.rows)
+        try {
+            GalleryFile.read(file, model)
+            fail("Oversized gallery was read")
+        } catch (e: IOException) {
+            assertTrue(e.message!!.contains("too large"))
+        }
+    }
+
+    @Test(expected = IOException::class)
+    fun otherFilesAreRejected() {
+        val file = folder.newFile("gallery.bin")
+        file.writeBytes(ByteArray(64) { it.toByte() })
+        GalleryFile.readHeader(file)
+    }
+
+    private fun gallery(random: Random, vararg labels: String): EmbeddingGallery {
+        val gallery = EmbeddingGallery(model.outputDims)
+        for (label in labels) {
+            gallery.add(label, FloatArray(model.outputDims) { random.nextGaussian().toFloat() })
+        }
+        return gallery
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.face.vision.utils
+
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.ModelInfo
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+
+class GalleryJournalTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val model = ModelInfo.FACENET_QUANTIZED
+
+    @Test
+    fun closeWritesEveryQueuedRecord() = runBlocking {
+        val directory = folder.newFolder()
+        val job = Job()
+        val journal = GalleryJournal(directory, model, CoroutineScope(job + Dispatchers.IO)) {}
+        journal.open()
+        repeat(200) { assertTrue(journal.add("id${it % 50}", vector(it))) }
+        journal.delete("id0")
+        journal.close()
+        assertFalse(journal.add("late", vector(0)))
+        job.children.toList().joinAll()
+
+        val reopened = reopen(directory)
+        assertEquals(196, reopened.size)
+        assertEquals(49, reopened.identityCount)
+        assertArrayEquals(vector(199), reopened.copyVector(reopened.identityEnd(reopened.identityOf("id49")) - 1), 0f)
+    }
+
+    @Test
+    fun cancelledScopeStillWritesQueuedRecords() = runBlocking {
+        val directory = folder.newFolder()
+        val job = Job()
+        val journal = GalleryJournal(directory, model, CoroutineScope(job + Dispatchers.IO)) {}
+        journal.open()
+        repeat(100) { journal.add("id$it", vector(it)) }
+        val children = job.children.toList()
+        job.cancel()
+        children.joinAll()
+
+        assertEquals(100, reopen(directory).size)
+    }
+
+    @Test
+    fun failedOpenStopsAcceptingRecords() = runBlocking {
+        val directory = folder.newFolder()
+        val other = ModelInfo.FACENET_512
+        GalleryFile.write(File(directory, "snapshot-0.bin"), other, EmbeddingGallery(other.outputDims))
+        val journal = GalleryJournal(directory, model, CoroutineScope(Job() + Dispatchers.IO)) {}
+        try {
+            journal.open()
+            throw AssertionError("open() should fail")
+        } catch (e: IOException) {
+        }
+        assertFalse(journal.add("id0", vector(0)))
+    }
+
+    @Test
+    fun tornTailIsDroppedOnReplay() = runBlocking {
+        val directory = folder.newFolder()
+        val job = Job()
+        val journal = GalleryJournal(directory, model, CoroutineScope(job + Dispatchers.IO)) {}
+        journal.open()
+        repeat(10) { journal.add("id$it", vector(it)) }
+        journal.close()
+        job.children.toList().joinAll()
+        val file = File(directory, "gallery.journal")
+        file.appendBytes(ByteArray(30) { 7 })
+
+        assertEquals(10, reopen(directory).size)
+        assertEquals(10, reopen(directory).size)
+    }
+
+    private suspend fun reopen(directory: File): EmbeddingGallery {
+        val job = Job()
+        val journal = GalleryJournal(directory, model, CoroutineScope(job + Dispatchers.IO)) {}
+        val gallery = journal.open()
+        job.cancel()
+        return gallery
+    }
+
+    private fun vector(seed: Int) = FloatArray(model.outputDims) { (seed * 31 + it) % 17 - 8f }
+
+}
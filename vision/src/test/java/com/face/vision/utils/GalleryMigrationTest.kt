@@ -0,0 +1,148 @@
+package com.face.vision.utils
+
+import android.graphics.Bitmap
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.ModelInfo
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class GalleryMigrationTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val staleModel = ModelInfo.FACENET_QUANTIZED
+    private val targetModel = ModelInfo.FACENET_512_QUANTIZED
+
+    @Test
+    fun findStaleReportsGalleriesOfOtherModels() = runBlocking {
+        val root = folder.newFolder()
+        assertNull(GalleryMigration.findStale(root, targetModel))
+
+        enroll(root, staleModel, listOf("ann", "bob"))
+        val stale = GalleryMigration.findStale(root, targetModel)
+        assertEquals(staleModel, stale?.model)
+        assertEquals(GalleryJournal.directoryFor(root, staleModel), stale?.directory)
+        assertNull(GalleryMigration.findStale(root, staleModel))
+    }
+
+    @Test
+    fun findStaleIgnoresEmptyDirectories() = runBlocking {
+        val root = folder.newFolder()
+        GalleryJournal.directoryFor(root, staleModel).mkdirs()
+        assertNull(GalleryMigration.findStale(root, targetModel))
+    }
+
+    @Test
+    fun completeMigrationRetiresTheStaleGallery() = runBlocking {
+        val root = folder.newFolder()
+        val staleGallery = enroll(root, staleModel, listOf("ann", "bob", "cat"))
+        val stale = GalleryMigration.findStale(root, targetModel)!!
+
+        val (result, embedded) = migrate(root, staleGallery, noPhotos = emptySet())
+        assertEquals(listOf("ann", "bob", "cat"), embedded)
+        assertEquals(3, result.gallery.identityCount)
+        assertEquals(emptyList<String>(), result.failed)
+        assertTrue(GalleryMigration.retire(stale, result))
+        assertFalse(stale.directory.exists())
+        assertNull(GalleryMigration.findStale(root, targetModel))
+    }
+
+    @Test
+    fun partialMigrationKeepsTheStaleGallery() = runBlocking {
+        val root = folder.newFolder()
+        val staleGallery = enroll(root, staleModel, listOf("ann", "bob", "cat"))
+        val stale = GalleryMigration.findStale(root, targetModel)!!
+
+        val (result, _) = migrate(root, staleGallery, noPhotos = setOf("bob"))
+        assertEquals(listOf("bob"), result.failed)
+        assertEquals(2, result.gallery.identityCount)
+        assertFalse(GalleryMigration.retire(stale, result))
+        assertEquals(3, reopen(stale.directory, staleModel).identityCount)
+        assertEquals(staleModel, GalleryMigration.findStale(root, targetModel)?.model)
+    }
+
+    @Test
+    fun resumedMigrationSkipsMigratedIdentities() = runBlocking {
+        val root = folder.newFolder()
+        val staleGallery = enroll(root, staleModel, listOf("ann", "bob", "cat"))
+        val partial = EmbeddingGallery(targetModel.outputDims)
+        partial.add("ann", vector("ann", targetModel.outputDims))
+
+        val (result, embedded) = migrate(root, staleGallery, noPhotos = emptySet(), partial)
+        assertEquals(listOf("bob", "cat"), embedded)
+        assertEquals(3, result.gallery.identityCount)
+        assertEquals(emptyList<String>(), result.failed)
+    }
+
+    private class Photo(label: String) : EnrollmentImage(label) {
+        override fun decode(maxSide: Int): Bitmap? = null
+    }
+
+    private suspend fun migrate(
+        root: File,
+        staleGallery: EmbeddingGallery,
+        noPhotos: Set<String>,
+        partial: EmbeddingGallery = EmbeddingGallery(targetModel.outputDims)
+    ): Pair<GalleryMigration.Result, List<String>> {
+        val embedded = ArrayList<String>()
+        val job = Job()
+        val journal = GalleryJournal(
+            GalleryJournal.directoryFor(root, targetModel),
+            targetModel,
+            CoroutineScope(job + Dispatchers.IO)
+        ) {}
+        journal.open()
+        val migration = GalleryMigration(
+            targetModel.outputDims,
+            journal,
+            { label -> if (label in noPhotos) emptyList() else listOf(Photo(label)) },
+            { images ->
+                images.map {
+                    embedded.add(it.label)
+                    Pair(it.label, vector(it.label, targetModel.outputDims))
+                }
+            },
+            batchSize = 2
+        )
+        val result = migration.migrate(staleGallery, partial)
+        journal.close()
+        job.children.toList().joinAll()
+        return Pair(result, embedded)
+    }
+
+    private suspend fun enroll(root: File, model: ModelInfo, labels: List<String>): EmbeddingGallery {
+        val directory = GalleryJournal.directoryFor(root, model)
+        val job = Job()
+        val journal = GalleryJournal(directory, model, CoroutineScope(job + Dispatchers.IO)) {}
+        journal.open()
+        for (label in labels) journal.add(label, vector(label, model.outputDims))
+        journal.close()
+        job.children.toList().joinAll()
+        return reopen(directory, model)
+    }
+
+    private suspend fun reopen(directory: File, model: ModelInfo): EmbeddingGallery {
+        val job = Job()
+        val journal = GalleryJournal(directory, model, CoroutineScope(job + Dispatchers.IO)) {}
+        val gallery = journal.open()
+        journal.close()
+        job.children.toList().joinAll()
+        return gallery
+    }
+
+    private fun vector(label: String, dims: Int) =
+        FloatArray(dims) { (label.hashCode() * 31 + it) % 17 - 8f }
+
+}
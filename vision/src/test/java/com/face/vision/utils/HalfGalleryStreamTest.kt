@@ -0,0 +1,142 @@
+package com.face.vision.utils
+
+import com.face.vision.model.EmbeddingGallery
+import com.face.vision.model.ModelInfo
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.Random
+import kotlin.math.abs
+
+class HalfGalleryStreamTest {
+
+    private val model = ModelInfo.FACENET_QUANTIZED
+
+    @Test
+    fun roundTripKeepsLabelsAndHalfPrecision() {
+        val gallery = gallery(Random(1), 40)
+        val read = HalfGalleryStream.read(ByteArrayInputStream(write(gallery)), model)!!
+        assertEquals(gallery.size, read.size)
+        for (row in 0 until gallery.size) {
+            assertEquals(gallery.labelAt(row), read.labelAt(row))
+            val expected = gallery.copyVector(row)
+            val actual = read.copyVector(row)
+            for (i in expected.indices) {
+                assertEquals(expected[i], actual[i], abs(expected[i]) / 1024 + 1e-7f)
+            }
+        }
+    }
+
+    @Test
+    fun corruptedStreamDeliversNoRows() {
+        val bytes = write(gallery(Random(2), 40))
+        bytes[bytes.size - 100] = (bytes[bytes.size - 100] + 1).toByte()
+        var delivered = 0
+        try {
+            HalfGalleryStream.read(ByteArrayInputStream(bytes), model) { _, _ -> delivered++ }
+            fail("Corruption was not detected")
+        } catch (e: IOException) {
+        }
+        assertEquals(0, delivered)
+    }
+
+    @Test
+    fun rowsBeforeADamagedBlockAreDelivered() {
+        val rows = HalfGalleryStream.BLOCK_ROWS * 2 + 10
+        val bytes = write(gallery(Random(5), rows))
+        bytes[bytes.size - 100] = (bytes[bytes.size - 100] + 1).toByte()
+        var delivered = 0
+        try {
+            HalfGalleryStream.read(ByteArrayInputStream(bytes)) { _, _ -> delivered++ }
+            fail("Corruption was not detected")
+        } catch (e: IOException) {
+        }
+        assertEquals(HalfGalleryStream.BLOCK_ROWS * 2, delivered)
+        try {
+            HalfGalleryStream.read(ByteArrayInputStream(bytes), model)
+            fail("Corruption was not detected")
+        } catch (e: IOException) {
+        }
+    }
+
+    @Test
+    fun blocksRoundTripAcrossTheBoundary() {
+        for (rows in listOf(0, HalfGalleryStream.BLOCK_ROWS, HalfGalleryStream.BLOCK_ROWS + 1)) {
+            val gallery = gallery(Random(6), rows)
+            val read = HalfGalleryStream.read(ByteArrayInputStream(write(gallery)), model)!!
+            assertEquals(rows, read.size)
+            if (rows > 0) assertEquals(gallery.labelAt(rows - 1), read.labelAt(rows - 1))
+        }
+    }
+
+    @Test
+    fun corruptedHeaderIsRejected() {
+        val bytes = write(gallery(Random(7), 3))
+        // Low byte of the dims field, after magic, version and the model name
+        bytes[12 + model.name.length] = 9
+        try {
+            HalfGalleryStream.read(ByteArrayInputStream(bytes)) { _, _ -> fail("No rows expected") }
+            fail("Corruption was not detected")
+        } catch (e: IOException) {
+        }
+    }
+
+    @Test
+    fun truncatedStreamDeliversNoRows() {
+        val bytes = write(gallery(Random(3), 40))
+        var delivered = 0
+        try {
+            HalfGalleryStream.read(ByteArrayInputStream(bytes.copyOf(bytes.size - 4))) { _, _ -> delivered++ }
+            fail("Truncation was not detected")
+        } catch (e: IOException) {
+        }
+        assertEquals(0, delivered)
+    }
+
+    @Test
+    fun streamForAnotherModelIsSkipped() {
+        val bytes = write(gallery(Random(4), 3))
+        assertNull(HalfGalleryStream.read(ByteArrayInputStream(bytes), ModelInfo.FACENET_512_QUANTIZED))
+        assertFalse(HalfGalleryStream.read(ByteArrayInputStream(bytes), ModelInfo.FACENET_512) { _, _ ->
+            fail("No rows expected")
+        })
+    }
+
+    @Test
+    fun halfConversionRoundsToNearestEven() {
+        assertEquals(1f, HalfGalleryStream.toFloat(HalfGalleryStream.toHalf(1f)), 0f)
+        assertEquals(65504f, HalfGalleryStream.toFloat(HalfGalleryStream.toHalf(65504f)), 0f)
+        assertEquals(Float.POSITIVE_INFINITY, HalfGalleryStream.toFloat(HalfGalleryStream.toHalf(70000f)), 0f)
+        assertEquals(1f, HalfGalleryStream.toFloat(HalfGalleryStream.toHalf(1f + 1f / 2048)), 0f)
+        assertEquals(1f + 2f / 1024, HalfGalleryStream.toFloat(HalfGalleryStream.toHalf(1f + 3f / 2048)), 0f)
+        val subnormal = 3f / (1 shl 24)
+        assertEquals(subnormal, HalfGalleryStream.toFloat(HalfGalleryStream.toHalf(subnormal)), 0f)
+        assertEquals(-0f, HalfGalleryStream.toFloat(HalfGalleryStream.toHalf(-0f)), 0f)
+        assertEquals(0x8000.toShort(), HalfGalleryStream.toHalf(-0f))
+    }
+
+    private fun HalfGalleryStream.read(
+        input: ByteArrayInputStream,
+        onRow: (String, FloatArray) -> Unit
+    ) = read(input, model, onRow = onRow)
+
+    private fun write(gallery: EmbeddingGallery): ByteArray {
+        val output = ByteArrayOutputStream()
+        HalfGalleryStream.write(output, model, gallery)
+        return output.toByteArray()
+    }
+
+    private fun gallery(random: Random, rows: Int): EmbeddingGallery {
+        val gallery = EmbeddingGallery(model.outputDims)
+        for (row in 0 until rows) {
+            gallery.add("id${row / 2}", FloatArray(model.outputDims) { random.nextGaussian().toFloat() })
+        }
+        return gallery
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.face.vision.utils
+
+import android.graphics.Rect
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import kotlin.math.max
+import kotlin.math.sqrt
+
+class PlaneSamplerTest {
+
+    private val width = 4
+    private val height = 2
+
+    // Distinct value per sensor pixel and channel
+    private fun value(x: Int, y: Int, c: Int) = (y * width + x) * 10 + c
+
+    private fun plane(rowStride: Int): ByteBuffer {
+        val plane = ByteBuffer.allocate(rowStride * height)
+        for (y in 0 until height) {
+            for (x in 0 until width) {
+                for (c in 0 until 4) {
+                    plane.put(y * rowStride + x * 4 + c, (if (c == 3) 255 else value(x, y, c)).toByte())
+                }
+            }
+        }
+        return plane
+    }
+
+    private fun rect(left: Int, top: Int, right: Int, bottom: Int) = Rect().apply {
+        this.left = left
+        this.top = top
+        this.right = right
+        this.bottom = bottom
+    }
+
+    @Test
+    fun rotatesCropsClockwiseIntoTheTensor() {
+        for (rotation in intArrayOf(0, 90, 180, 270)) {
+            val sampler = RgbaPlaneSampler()
+            sampler.bind(plane(rowStride = width * 4 + 8), width, height, width * 4 + 8, 4, rotation)
+            val upright = rotate(rotation)
+            val crop = rect(0, 0, 2, 2)
+            val tensor = sampler.faceTensor(crop, 2)
+            val expected = standardize(FloatArray(2 * 2 * 3) { i ->
+                val pixel = i / 3
+                upright(pixel % 2, pixel / 2, i % 3).toFloat()
+            })
+            for (i in expected.indices) {
+                assertEquals("rotation $rotation, value $i", expected[i], tensor.getFloat(i * 4), 1e-4f)
+            }
+            sampler.release()
+        }
+    }
+
+    @Test
+    fun uprightSizeSwapsForQuarterTurns() {
+        val sampler = RgbaPlaneSampler()
+        sampler.bind(plane(width * 4), width, height, width * 4, 4, 90)
+        assertEquals(height, sampler.uprightWidth)
+        assertEquals(width, sampler.uprightHeight)
+        sampler.bind(plane(width * 4), width, height, width * 4, 4, -180)
+        assertEquals(width, sampler.uprightWidth)
+        assertEquals(height, sampler.uprightHeight)
+    }
+
+    @Test
+    fun downsamplingInterpolatesBilinearly() {
+        val sampler = RgbaPlaneSampler()
+        sampler.bind(plane(width * 4), width, height, width * 4, 4, 0)
+        // One output pixel at the centre of a 2x2 crop averages its four sensor pixels
+        val tensor = sampler.faceTensor(rect(1, 0, 3, 2), 1)
+        val average = FloatArray(3) { c ->
+            (value(1, 0, c) + value(2, 0, c) + value(1, 1, c) + value(2, 1, c)) / 4f
+        }
+        val expected = standardize(average)
+        for (c in 0 until 3) {
+            assertEquals(expected[c], tensor.getFloat(c * 4), 1e-4f)
+        }
+    }
+
+    @Test
+    fun standardizesToZeroMeanAndUnitVariance() {
+        val sampler = RgbaPlaneSampler()
+        sampler.bind(plane(width * 4), width, height, width * 4, 4, 0)
+        val tensor = sampler.faceTensor(rect(0, 0, 2, 2), 8)
+        val n = 8 * 8 * 3
+        val values = FloatArray(n) { tensor.getFloat(it * 4) }
+        val mean = values.average()
+        val variance = values.sumOf { (it - mean) * (it - mean) } / n
+        assertEquals(0.0, mean, 1e-4)
+        assertEquals(1.0, variance, 1e-3)
+        assertEquals(0, tensor.position())
+    }
+
+    @Test
+    fun flatCropStandardizesToZeros() {
+        val plane = ByteBuffer.allocate(width * height * 4)
+        for (i in 0 until plane.capacity()) plane.put(i, 77)
+        val sampler = RgbaPlaneSampler()
+        sampler.bind(plane, width, height, width * 4, 4, 0)
+        val tensor = sampler.faceTensor(rect(0, 0, 2, 2), 4)
+        for (i in 0 until 4 * 4 * 3) {
+            assertEquals(0f, tensor.getFloat(i * 4), 0f)
+        }
+    }
+
+    @Test
+    fun yuvChromaHonoursPerPlaneStrides() {
+        val y = ByteBuffer.allocate(width * height)
+        for (i in 0 until width * height) y.put(i, (60 + i * 10).toByte())
+        // Interleaved U at stride 2 and a planar V with its own row stride
+        val u = ByteBuffer.allocate(16)
+        for (i in 0 until 16) u.put(i, if (i % 2 == 0) 128.toByte() else 0)
+        val v = ByteBuffer.allocate(8)
+        v.put(0, 148.toByte())
+        v.put(1, 108.toByte())
+        val sampler = YuvPlaneSampler()
+        sampler.bind(y, width, 1, u, 8, 2, v, 4, 1, width, height, 0)
+        val tensor = sampler.faceTensor(rect(2, 0, 4, 2), 2)
+        // All four pixels share the second chroma sample: u neutral, v = 108
+        val expected = standardize(FloatArray(2 * 2 * 3) { i ->
+            val pixel = i / 3
+            val luma = 60f + ((pixel / 2) * width + 2 + pixel % 2) * 10
+            when (i % 3) {
+                0 -> luma - 1.402f * 20
+                1 -> luma + 0.714136f * 20
+                else -> luma
+            }
+        })
+        for (i in expected.indices) {
+            assertEquals(expected[i], tensor.getFloat(i * 4), 1e-4f)
+        }
+    }
+
+    /**
+     * Upright image as (x, y, channel) -> value, built by turning the sensor image clockwise.
+     */
+    private fun rotate(rotation: Int): (Int, Int, Int) -> Int {
+        val swap = rotation == 90 || rotation == 270
+        val w = if (swap) height else width
+        val h = if (swap) width else height
+        val upright = Array(h) { IntArray(w) }
+        for (sy in 0 until height) {
+            for (sx in 0 until width) {
+                val index = sy * width + sx
+                when (rotation) {
+                    90 -> upright[sx][height - 1 - sy] = index
+                    180 -> upright[height - 1 - sy][width - 1 - sx] = index
+                    270 -> upright[width - 1 - sx][sy] = index
+                    else -> upright[sy][sx] = index
+                }
+            }
+        }
+        return { x, y, c -> upright[y][x] * 10 + c }
+    }
+
+    private fun standardize(values: FloatArray): FloatArray {
+        val mean = values.average()
+        val variance = values.sumOf { (it - mean) * (it - mean) } / values.size
+        val std = max(sqrt(variance), 1.0 / sqrt(values.size.toDouble()))
+        return FloatArray(values.size) { ((values[it] - mean) / std).toFloat() }
+    }
+
+}
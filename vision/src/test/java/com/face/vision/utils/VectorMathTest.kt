@@ -0,0 +1,155 @@
+package com.face.vision.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.util.Random
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.sqrt
+
+class VectorMathTest {
+
+    private val random = Random(7)
+
+    @Test
+    fun squaredL2MatchesScalarForEveryTailLength() {
+        for (length in 0..19) {
+            val a = randomArray(length + 3)
+            val b = randomArray(length + 5)
+            val expected = scalarSquaredL2(a, 3, b, 5, length)
+            assertClose(expected, VectorMath.squaredL2(a, 3, b, 5, length).toDouble())
+        }
+        val a = randomArray(512)
+        val b = randomArray(512)
+        assertClose(scalarSquaredL2(a, 0, b, 0, 512), VectorMath.squaredL2(a, b).toDouble())
+        val l2 = VectorMath.l2(a, 0, b, 0, 512)
+        assertClose(sqrt(scalarSquaredL2(a, 0, b, 0, 512)), l2.toDouble())
+    }
+
+    @Test
+    fun dotMatchesScalarForEveryTailLength() {
+        for (length in 0..19) {
+            val a = randomArray(length + 1)
+            val b = randomArray(length + 2)
+            val dot = VectorMath.dot(a, 1, b, 2, length)
+            assertClose(scalarDot(a, 1, b, 2, length), dot.toDouble())
+        }
+        val a = randomArray(512)
+        val b = randomArray(512)
+        assertClose(scalarDot(a, 0, b, 0, 512), VectorMath.dot(a, b).toDouble())
+    }
+
+    @Test
+    fun boundedSquaredL2IsExactBelowBoundAndAboveItOtherwise() {
+        val a = randomArray(512)
+        val b = randomArray(512)
+        val exact = scalarSquaredL2(a, 0, b, 0, 512)
+        val full = VectorMath.squaredL2Bounded(a, 0, b, 0, 512, (exact * 2).toFloat())
+        assertClose(exact, full.toDouble())
+        val bound = (exact / 4).toFloat()
+        val abandoned = VectorMath.squaredL2Bounded(a, 0, b, 0, 512, bound)
+        assertTrue(abandoned > bound)
+        assertTrue(abandoned <= exact + 1e-3)
+    }
+
+    @Test
+    fun dot4x1MatchesFourScalarDots() {
+        val dims = 37
+        val a = randomArray(2 + 4 * dims)
+        val b = randomArray(dims)
+        val out = FloatArray(6)
+        VectorMath.dot4x1(a, 2, dims, b, 0, dims, out, 1)
+        for (r in 0 until 4) {
+            assertClose(scalarDot(a, 2 + r * dims, b, 0, dims), out[1 + r].toDouble())
+        }
+        assertEquals(0f, out[0], 0f)
+        assertEquals(0f, out[5], 0f)
+    }
+
+    @Test
+    fun int8DotMatchesScalar() {
+        for (length in listOf(0, 1, 3, 4, 5, 128, 513)) {
+            val a = ByteArray(length) { (random.nextInt(255) - 127).toByte() }
+            val b = ByteArray(length) { (random.nextInt(255) - 127).toByte() }
+            var expected = 0
+            for (i in 0 until length) expected += a[i] * b[i]
+            assertEquals(expected, VectorMath.dot(a, 0, b, 0, length))
+        }
+        val extreme = ByteArray(512) { 127 }
+        assertEquals(512 * 127 * 127, VectorMath.dot(extreme, 0, extreme, 0, 512))
+    }
+
+    @Test
+    fun cosineAndNormalizeMatchScalar() {
+        val a = randomArray(130)
+        val b = randomArray(130)
+        val expected = scalarDot(a, 0, b, 0, 130) /
+                sqrt(scalarDot(a, 0, a, 0, 130) * scalarDot(b, 0, b, 0, 130))
+        assertClose(expected, VectorMath.cosine(a, b).toDouble())
+        assertEquals(0f, VectorMath.cosine(a, 0, 0f, b, 0, 1f, 130), 0f)
+
+        val copy = a.copyOf()
+        val norm = VectorMath.normalize(copy)
+        assertClose(sqrt(scalarDot(a, 0, a, 0, 130)), norm.toDouble())
+        assertClose(1.0, VectorMath.norm(copy).toDouble())
+        val zero = FloatArray(8)
+        assertEquals(0f, VectorMath.normalize(zero), 0f)
+        assertTrue(zero.all { it == 0f })
+    }
+
+    @Test
+    fun kernelsDoNotAllocate() {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val thread = Thread.currentThread().id
+        val a = randomArray(512)
+        val b = randomArray(512)
+        val codesA = ByteArray(512) { it.toByte() }
+        val codesB = ByteArray(512) { (-it).toByte() }
+        val out = FloatArray(4)
+        val tile = randomArray(4 * 512)
+        var sink = 0f
+        fun run() {
+            for (i in 0 until 1_000) {
+                sink += VectorMath.squaredL2(a, 0, b, 0, 512)
+                sink += VectorMath.squaredL2Bounded(a, 0, b, 0, 512, 10f)
+                sink += VectorMath.dot(a, 0, b, 0, 512)
+                sink += VectorMath.dot(codesA, 0, codesB, 0, 512)
+                sink += VectorMath.cosine(a, 0, 1f, b, 0, 1f, 512)
+                sink += VectorMath.norm(a)
+                VectorMath.dot4x1(tile, 0, 512, b, 0, 512, out, 0)
+            }
+        }
+        run()
+        val probe = threads.getThreadAllocatedBytes(thread)
+        val overhead = threads.getThreadAllocatedBytes(thread) - probe
+        val before = threads.getThreadAllocatedBytes(thread)
+        run()
+        val allocated = threads.getThreadAllocatedBytes(thread) - before - overhead
+        assertTrue("Kernels allocated $allocated bytes", allocated <= 0)
+        assertTrue(sink.isFinite())
+    }
+
+    private fun randomArray(size: Int) = FloatArray(size) { random.nextGaussian().toFloat() }
+
+    private fun scalarSquaredL2(a: FloatArray, aOff: Int, b: FloatArray, bOff: Int, n: Int): Double {
+        var sum = 0.0
+        for (i in 0 until n) {
+            val d = a[aOff + i].toDouble() - b[bOff + i]
+            sum += d * d
+        }
+        return sum
+    }
+
+    private fun scalarDot(a: FloatArray, aOff: Int, b: FloatArray, bOff: Int, n: Int): Double {
+        var sum = 0.0
+        for (i in 0 until n) sum += a[aOff + i].toDouble() * b[bOff + i]
+        return sum
+    }
+
+    private fun assertClose(expected: Double, actual: Double) {
+        assertEquals(expected, actual, 1e-4 * max(1.0, abs(expected)))
+    }
+
+}